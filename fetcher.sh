@@ -22,43 +22,8 @@ function help() {
     echo "    Poll the data every interval seconds, this runs until ctrl-c is pressed."
 }
 
-# call ./run.sh loadrt filename to load the data into database
-function load() {
-    if [ $# -eq 0 ]; then help && exit; fi
-
-    $this/run.sh loadrt "$1" $2
-}
-
-# download the current feed to file and load it into database
-# $1 is URL
-# $2 is filename prefix
-# $3 is output_dir
-# $4 is interval
-# $5 is hostname:port
-function fetch() {
-    URL=$1
-    PREFIX=$2
-    OUTPUT_DIR=$3
-    INTERVAL=$4
-    SERVER=$5
-
-    while true
-    do
-        NOW=`date +"%Y%m%d-%H%M%S"`
-        FILENAME="$PREFIX-$NOW.pb"
-        FILEPATH="$OUTPUT_DIR/$FILENAME"
-        if [ ! -f $FILEPATH ]
-        then
-            wget -O "$FILEPATH" $URL
-
-            load "$FILEPATH" $SERVER
-        fi
-
-        sleep $INTERVAL
-    done
-}
-
-# download both position updates and trip updates and load them into database
+# download both position updates and trip updates and load them into database,
+# each feed is polled on its own schedule by a single long-running loader
 # $1 is output_dir
 # $2 is interval
 # $3 is hostname:port
@@ -69,8 +34,9 @@ function fetch_all() {
     SERVER="localhost"
     if [ $# -ge 3 ]; then SERVER=$3; fi
 
-    fetch $POSITION_URL "mbta-vehicles" $1 $INTERVAL $SERVER
-    fetch $UPDATE_URL "mbta-updates" $1 $INTERVAL $SERVER
+    $this/run.sh poll $SERVER "$1" default \
+        "mbta-vehicles:$INTERVAL:$POSITION_URL" \
+        "mbta-updates:$INTERVAL:$UPDATE_URL"
 }
 
 if [ $# -ge 1 ]; then fetch_all "$@"; else help; fi
@@ -80,13 +80,27 @@ function loadgtfs() {
 
 # load realtime feeds
 function loadrt() {
-    if [ $# -eq 0 ]; then echo "loadrt FILENAME [SERVER:PORT]" && exit; fi
+    if [ $# -eq 0 ]; then echo "loadrt FILENAME [SERVER:PORT[,SERVER:PORT...] [OUTSTANDING [PARSERS]]]" && exit; fi
     SERVER="localhost"
-    if [ $# -eq 2 ]; then SERVER=$2; fi
+    if [ $# -ge 2 ]; then SERVER=$2; fi
     echo Loading "$1" into $SERVER
     # run the loader
     java -classpath obj:$APPCLASSPATH:obj -Dlog4j.configuration=file://$LOG4J \
-        voltdb.realtime.Loader "$1" $SERVER
+        voltdb.realtime.Loader "$1" $SERVER $3 $4
+}
+
+# poll realtime feeds and load them whenever they change
+function poll() {
+    if [ $# -lt 4 ]; then echo "poll SERVER:PORT[,SERVER:PORT...] OUTPUT_DIR|none POLICY|default PREFIX:INTERVAL:URL..." && exit; fi
+    java -classpath obj:$APPCLASSPATH:obj -Dlog4j.configuration=file://$LOG4J \
+        voltdb.realtime.Poller "$@"
+}
+
+# delete realtime data older than its retention window, every hour
+function retention() {
+    if [ $# -lt 1 ]; then echo "retention SERVER:PORT[,SERVER:PORT...] [POLICY|default [INTERVAL_MINUTES [ARCHIVE_DIR]]]" && exit; fi
+    java -classpath obj:$APPCLASSPATH:obj -Dlog4j.configuration=file://$LOG4J \
+        voltdb.realtime.Retention "$@"
 }
 
 # Start the web server, requires Java 7
@@ -97,7 +111,7 @@ function webserver() {
 }
 
 function help() {
-    echo "Usage: ./run.sh {clean|catalog|server|loadgtfs|loadrt|webserver}"
+    echo "Usage: ./run.sh {clean|catalog|server|loadgtfs|loadrt|poll|retention|webserver}"
 }
 
 # Run the target passed as the first arg on the command line
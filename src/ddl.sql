@@ -11,6 +11,10 @@ CREATE TABLE vehicle_positions
   relationship  tinyint     NOT NULL,
   latitude      float       NOT NULL,
   longitude     float       NOT NULL,
+  -- The position snapped to the trip's path from stop to stop
+  distance      float       NOT NULL, -- meters along the path from the first stop
+  next_stop_sequence integer NOT NULL, -- the stop ahead, or the last stop
+  progress      float       NOT NULL, -- fraction of the way from the stop before to the stop ahead
 
   PRIMARY KEY
   (
@@ -20,6 +24,37 @@ CREATE TABLE vehicle_positions
 
 PARTITION TABLE vehicle_positions ON COLUMN trip_id;
 
+-- For the retention job to find expired rows without a scan
+CREATE INDEX timed_vehicle_positions ON vehicle_positions(time_usec);
+
+-- The latest row of vehicle_positions for each trip
+CREATE TABLE current_vehicle_positions
+(
+  trip_id       varchar(40) NOT NULL,
+  start_date    varchar(8)  NOT NULL,
+  start_usec    bigint      NOT NULL, -- pseudo-date
+  timestamp     timestamp   NOT NULL,
+  time_usec     bigint      NOT NULL, -- pseudo-timestamp
+  stop_sequence integer     NOT NULL,
+  relationship  tinyint     NOT NULL,
+  latitude      float       NOT NULL,
+  longitude     float       NOT NULL,
+  grid_cell     bigint      NOT NULL, -- GeoGrid cell of the position
+  -- The position snapped to the trip's path from stop to stop
+  distance      float       NOT NULL, -- meters along the path from the first stop
+  next_stop_sequence integer NOT NULL, -- the stop ahead, or the last stop
+  progress      float       NOT NULL, -- fraction of the way from the stop before to the stop ahead
+
+  PRIMARY KEY
+  (
+    trip_id
+  )
+);
+
+PARTITION TABLE current_vehicle_positions ON COLUMN trip_id;
+
+CREATE INDEX gridded_current_vehicle_positions ON current_vehicle_positions(grid_cell);
+
 CREATE TABLE trip_updates
 (
   trip_id       varchar(40) NOT NULL,
@@ -37,6 +72,9 @@ CREATE TABLE trip_updates
 
 PARTITION TABLE trip_updates ON COLUMN trip_id;
 
+-- For the retention job to find expired rows without a scan
+CREATE INDEX timed_trip_updates ON trip_updates(time_usec);
+
 CREATE TABLE stop_time_updates
 (
   trip_id        varchar(40) NOT NULL,
@@ -54,12 +92,15 @@ CREATE TABLE stop_time_updates
 
 PARTITION TABLE stop_time_updates ON COLUMN trip_id;
 
+-- For the retention job to find expired rows without a scan
+CREATE INDEX timed_stop_time_updates ON stop_time_updates(time_usec);
+
 CREATE TABLE effective_stop_times
 (
   trip_id        varchar(40) NOT NULL,
   start_date     varchar(8)  NOT NULL, -- a delay will be specific to the trip on a particular date
   start_usec     bigint      NOT NULL, -- pseudo-timestamp
-  time_usec      bigint      NOT NULL, -- pseudo-timestamp (diagnostic source batch update id)
+  time_usec      bigint      NOT NULL, -- pseudo-timestamp (diagnostic id of the batch update that last changed the row)
   arrival_usec   bigint      NOT NULL, -- pseudo-time-of-day
   departure_usec bigint      NOT NULL, -- pseudo-time-of-day
   stop_sequence  integer     NOT NULL,
@@ -72,6 +113,37 @@ CREATE TABLE effective_stop_times
 
 PARTITION TABLE effective_stop_times ON COLUMN trip_id;
 
+-- For the retention job to find expired rows without a scan
+CREATE INDEX timed_effective_stop_times ON effective_stop_times(time_usec);
+
+-- Upcoming effective arrivals by stop, copied from trip updates and from the
+-- lateness inferred from vehicle positions by the loader so that stop queries
+-- are single-partition.
+CREATE TABLE stop_arrivals
+(
+  stop_id        varchar(32) NOT NULL,
+  trip_id        varchar(40) NOT NULL,
+  start_date     varchar(8)  NOT NULL,
+  route_id       varchar(32) NOT NULL,
+  start_usec     bigint      NOT NULL, -- pseudo-date
+  stop_sequence  integer     NOT NULL,
+  arrival_usec   bigint      NOT NULL, -- pseudo-timestamp
+  delay          bigint      NOT NULL,
+  time_usec      bigint      NOT NULL, -- pseudo-timestamp (source batch update id)
+
+  PRIMARY KEY
+  (
+    stop_id, trip_id, start_date, stop_sequence
+  )
+);
+
+PARTITION TABLE stop_arrivals ON COLUMN stop_id;
+
+CREATE INDEX timed_stop_arrivals ON stop_arrivals(stop_id, arrival_usec);
+
+-- For the retention job to find past arrivals without a scan
+CREATE INDEX due_stop_arrivals ON stop_arrivals(arrival_usec);
+
 -- The following are (static) GTFS tables
 
 CREATE TABLE routes
@@ -141,6 +213,35 @@ CREATE TABLE calendar_dates
   )
 );
 
+-- The start of every day each service runs, calendar expanded by weekday with
+-- calendar_dates added and dropped. Maintained by InsertCalendar and
+-- InsertCalendarDates.
+CREATE TABLE service_days
+(
+  service_id varchar(32) NOT NULL,
+  day_usec   bigint      NOT NULL, -- pseudo-timestamp
+
+  PRIMARY KEY
+  (
+    service_id, day_usec
+  )
+);
+
+CREATE INDEX dated_service_days ON service_days(day_usec);
+
+-- Bumped whenever calendar or calendar_dates change, so that the service days
+-- cached by procedures can be invalidated.
+CREATE TABLE calendar_version
+(
+  id      tinyint NOT NULL,
+  version bigint  NOT NULL,
+
+  PRIMARY KEY
+  (
+    id
+  )
+);
+
 CREATE TABLE stops
 (
   stop_id        varchar(32)  NOT NULL,
@@ -153,6 +254,7 @@ CREATE TABLE stops
   stop_url       varchar(16)  DEFAULT NULL,
   location_type  tinyint      DEFAULT 0,
   parent_station varchar(16)  DEFAULT NULL,
+  grid_cell      bigint       NOT NULL, -- GeoGrid cell of the stop
 
   PRIMARY KEY
   (
@@ -161,6 +263,20 @@ CREATE TABLE stops
 );
 
 CREATE UNIQUE INDEX named_stops ON stops(stop_name, stop_id);
+CREATE INDEX gridded_stops ON stops(grid_cell);
+
+-- Bumped whenever stops change, so that the stop coordinates cached by procedures
+-- can be invalidated.
+CREATE TABLE stops_version
+(
+  id      tinyint NOT NULL,
+  version bigint  NOT NULL,
+
+  PRIMARY KEY
+  (
+    id
+  )
+);
 
 CREATE TABLE stop_times
 (
@@ -185,6 +301,21 @@ PARTITION TABLE stop_times ON COLUMN trip_id;
 
 CREATE UNIQUE INDEX id_stop_times ON stop_times(stop_id, trip_id, stop_sequence);
 
+-- Bumped whenever a trip's stop times change, so that the stops cached by
+-- procedures for the trip can be invalidated.
+CREATE TABLE stop_times_version
+(
+  trip_id varchar(40) NOT NULL,
+  version bigint      NOT NULL,
+
+  PRIMARY KEY
+  (
+    trip_id
+  )
+);
+
+PARTITION TABLE stop_times_version ON COLUMN trip_id;
+
 -- Stored procedures
 CREATE PROCEDURE FROM CLASS voltdb.gtfs.procedures.InsertCalendar;
 CREATE PROCEDURE FROM CLASS voltdb.gtfs.procedures.InsertCalendarDates;
@@ -195,9 +326,36 @@ CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.InsertPosition;
 CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.InsertUpdate;
 CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.InsertStopTimeUpdates;
 CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.EffectStopTimeUpdates;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.InsertTripUpdate;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.UpdateStopArrivals;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.FindExpiredTrips;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetExpiredHistory;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.PruneHistory;
+
+-- Stops with arrivals due before the given time (in microseconds), oldest first and
+-- at most limit rows, for the retention job to prune with PruneStopArrivals. A stop
+-- may be listed more than once.
+CREATE PROCEDURE FindExpiredStopArrivals AS
+    SELECT stop_id
+    FROM stop_arrivals
+    WHERE arrival_usec < ?
+    ORDER BY arrival_usec, stop_id
+    LIMIT ?
+    ;
+
+CREATE PROCEDURE PruneStopArrivals AS
+    DELETE FROM stop_arrivals
+    WHERE stop_id = ?
+    AND arrival_usec < ?
+    ;
+PARTITION PROCEDURE PruneStopArrivals ON TABLE stop_arrivals COLUMN stop_id PARAMETER 0;
 
 CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetLatestSchedule;
 CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.FindBetterTime;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetDepartureBoard;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetStopsInBox;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetNearestStops;
+CREATE PROCEDURE FROM CLASS voltdb.realtime.procedures.GetVehiclesInBox;
 
 CREATE PROCEDURE FindTrips AS
     SELECT st.trip_id trip_id, st.stop_sequence stop_sequence
@@ -221,4 +379,44 @@ CREATE PROCEDURE CheckArrival AS
     LIMIT 1
     ;
 PARTITION PROCEDURE CheckArrival ON TABLE stop_times COLUMN trip_id PARAMETER 1;
+
+-- The next updated arrivals at a stop, after the given time (in microseconds), in
+-- the columns of GetDepartureBoard.
+CREATE PROCEDURE GetStopArrivals AS
+    SELECT trip_id, start_date, route_id, stop_id, arrival_usec, delay
+    FROM stop_arrivals
+    WHERE stop_id = ?
+    AND arrival_usec >= ?
+    ORDER BY arrival_usec, trip_id
+    LIMIT ?
+    ;
+PARTITION PROCEDURE GetStopArrivals ON TABLE stop_arrivals COLUMN stop_id PARAMETER 0;
+
+-- The same, of a single route.
+CREATE PROCEDURE GetStopRouteArrivals AS
+    SELECT trip_id, start_date, route_id, stop_id, arrival_usec, delay
+    FROM stop_arrivals
+    WHERE stop_id = ?
+    AND route_id = ?
+    AND arrival_usec >= ?
+    ORDER BY arrival_usec, trip_id
+    LIMIT ?
+    ;
+PARTITION PROCEDURE GetStopRouteArrivals ON TABLE stop_arrivals COLUMN stop_id PARAMETER 0;
+
+-- Where the vehicle serving a trip is now.
+CREATE PROCEDURE GetVehiclePosition AS
+    SELECT trip_id, latitude, longitude, stop_sequence, time_usec
+    FROM current_vehicle_positions
+    WHERE trip_id = ?
+    ;
+PARTITION PROCEDURE GetVehiclePosition ON TABLE current_vehicle_positions COLUMN trip_id PARAMETER 0;
+
+-- Where all vehicles reported since the given time (in microseconds) are now.
+CREATE PROCEDURE GetVehiclePositions AS
+    SELECT trip_id, latitude, longitude, stop_sequence, time_usec
+    FROM current_vehicle_positions
+    WHERE time_usec >= ?
+    ORDER BY trip_id
+    ;
     
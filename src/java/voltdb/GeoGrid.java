@@ -0,0 +1,99 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb;
+
+/**
+ * Maps coordinates to the cells of a fixed grid, so that rows can be found by location
+ * with an index on their cell. A cell is CELL_DEGREES on each side, about 1.1 by 0.8
+ * kilometers around Boston. Cells are numbered by row from the south pole, then by
+ * column from the antimeridian, so the cells of one row of a bounding box form a
+ * single range of cell numbers.
+ */
+public final class GeoGrid {
+    public static final double CELL_DEGREES = 0.01;
+    public static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    public static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+
+    private static final double METERS_PER_DEGREE = 111195;
+
+    private GeoGrid() {}
+
+    public static int rowOf(double lat)
+    {
+        return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    public static int columnOf(double lon)
+    {
+        return Math.max(0, Math.min(COLUMNS - 1, (int) Math.floor((lon + 180) / CELL_DEGREES)));
+    }
+
+    /**
+     * The cell of the given row and column. Rows and columns out of range are clamped
+     * to the edges of the grid.
+     */
+    public static long cell(int row, int column)
+    {
+        row = Math.max(0, Math.min(ROWS - 1, row));
+        column = Math.max(0, Math.min(COLUMNS - 1, column));
+        return (long) row * COLUMNS + column;
+    }
+
+    public static long cellOf(double lat, double lon)
+    {
+        return cell(rowOf(lat), columnOf(lon));
+    }
+
+    /**
+     * The west and east bounds of the spans of longitude from west to east. That is
+     * one span, unless west is east of east and the spans meet at the antimeridian.
+     */
+    public static double[][] spans(double west, double east)
+    {
+        if (west <= east) {
+            return new double[][] { { west, east } };
+        }
+        return new double[][] { { west, 180 }, { -180, east } };
+    }
+
+    /**
+     * The approximate distance in meters between two points, treating the earth as
+     * flat between them. Good to well under a percent over the extent of a city.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2)
+    {
+        double x = (lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = lat2 - lat1;
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * The shortest side of a cell at the given latitude, in meters. Every point within
+     * n times this distance of a point is within n cells of the point's cell.
+     */
+    public static double cellSize(double lat)
+    {
+        double poleward = Math.min(90, Math.abs(lat) + CELL_DEGREES);
+        return CELL_DEGREES * METERS_PER_DEGREE * Math.min(1, Math.cos(Math.toRadians(poleward)));
+    }
+}
@@ -0,0 +1,211 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb;
+
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Converts GTFS service dates to the microsecond timestamps of their start, without
+ * allocating. A service day starts 12 hours before noon in the feed's time zone,
+ * which is 11PM or 1AM on days with a daylight savings transition, as with
+ * CommonUtils.getNoonBasedDateFormat().
+ *
+ * Day starts are precomputed for FIRST_YEAR through LAST_YEAR. Days outside of that
+ * range are computed on demand. The table is immutable, so unlike a SimpleDateFormat
+ * this is safe to use from every execution site at once.
+ */
+public final class ServiceDays {
+    public static final String TIME_ZONE = "America/New_York";
+
+    private static final int FIRST_YEAR = 2000;
+    private static final int LAST_YEAR = 2050;
+
+    private static final long USEC_PER_DAY = 24l * 3600l * 1000l * 1000l;
+
+    private static final int FIRST_DAY = epochDay(FIRST_YEAR, 1, 1);
+    // Microsecond timestamps of the start of each day, from FIRST_DAY
+    private static final long[] dayStarts = new long[epochDay(LAST_YEAR + 1, 1, 1) - FIRST_DAY];
+
+    static {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone(TIME_ZONE));
+        calendar.clear();
+        calendar.set(FIRST_YEAR, Calendar.JANUARY, 1, 12, 0, 0);
+        for (int i = 0; i < dayStarts.length; i++) {
+            dayStarts[i] = noonToStart(calendar.getTimeInMillis());
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    private ServiceDays() {}
+
+    /**
+     * Parse a date in the format "yyyyMMdd" to the microsecond timestamp of the start
+     * of that service day.
+     */
+    public static long parse(String date) throws ParseException
+    {
+        if (date.length() != 8) {
+            throw new ParseException("Unparseable date: \"" + date + "\"", 0);
+        }
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Unparseable date: \"" + date + "\"", i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        int year = value / 10000;
+        int month = value / 100 % 100;
+        int day = value % 100;
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw new ParseException("Unparseable date: \"" + date + "\"", 4);
+        }
+        return startOf(epochDay(year, month, day));
+    }
+
+    /**
+     * The microsecond timestamp of the start of a service day, given as days since
+     * 1970-01-01.
+     */
+    public static long startOf(int epochDay)
+    {
+        int index = epochDay - FIRST_DAY;
+        if (index >= 0 && index < dayStarts.length) {
+            return dayStarts[index];
+        }
+
+        int[] ymd = civil(epochDay);
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone(TIME_ZONE));
+        calendar.clear();
+        calendar.set(ymd[0], ymd[1] - 1, ymd[2], 12, 0, 0);
+        return noonToStart(calendar.getTimeInMillis());
+    }
+
+    /**
+     * The service day, as days since 1970-01-01, that contains the given microsecond
+     * timestamp.
+     */
+    public static int dayOf(long usec)
+    {
+        // Service days start within a few hours of midnight UTC
+        int day = (int) Math.floor((double) usec / USEC_PER_DAY);
+        while (startOf(day) > usec) {
+            day--;
+        }
+        while (startOf(day + 1) <= usec) {
+            day++;
+        }
+        return day;
+    }
+
+    /**
+     * The start of the service day after the one that contains the given microsecond
+     * timestamp.
+     */
+    public static long nextDay(long usec)
+    {
+        return startOf(dayOf(usec) + 1);
+    }
+
+    /**
+     * The day of the week of the service day that contains the given microsecond
+     * timestamp, 0 for Monday through 6 for Sunday.
+     */
+    public static byte weekdayOf(long usec)
+    {
+        // 1970-01-01 was a Thursday
+        int weekday = (dayOf(usec) + 3) % 7;
+        return (byte) (weekday < 0 ? weekday + 7 : weekday);
+    }
+
+    /**
+     * Format a service day, given as days since 1970-01-01, as "yyyyMMdd".
+     */
+    public static String format(int epochDay)
+    {
+        int[] ymd = civil(epochDay);
+        char[] chars = new char[8];
+        int value = ymd[0] * 10000 + ymd[1] * 100 + ymd[2];
+        for (int i = 7; i >= 0; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(chars);
+    }
+
+    private static long noonToStart(long noonMillis)
+    {
+        return (noonMillis - 12l * 3600l * 1000l) * 1000l;
+    }
+
+    private static boolean isLeapYear(int year)
+    {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month)
+    {
+        switch (month) {
+        case 2:
+            return isLeapYear(year) ? 29 : 28;
+        case 4: case 6: case 9: case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    static int epochDay(int year, int month, int day)
+    {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * The year, month and day of days since 1970-01-01, the inverse of epochDay().
+     */
+    static int[] civil(int epochDay)
+    {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new int[] { year, month, day };
+    }
+}
@@ -27,10 +27,11 @@ import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 public class InsertCalendar extends VoltProcedure {
     public static final byte MON  = 1 << 0;
@@ -41,11 +42,27 @@ public class InsertCalendar extends VoltProcedure {
     public static final byte SAT  = 1 << 5;
     public static final byte SUN  = 1 << 6;
 
-    private static final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
 
     public static final SQLStmt insertSQL =
         new SQLStmt("INSERT INTO calendar VALUES (?, ?, ?, ?, ?, ?);");
 
+    /// Calendar dates may have been loaded first, they override the weekdays.
+    public static final SQLStmt getExceptionsSQL =
+        new SQLStmt("SELECT date_usec, exception_type FROM calendar_dates WHERE service_id = ?;");
+    public static final SQLStmt getServiceDaysSQL =
+        new SQLStmt("SELECT day_usec FROM service_days WHERE service_id = ?;");
+
+    public static final SQLStmt insertServiceDaySQL =
+        new SQLStmt("INSERT INTO service_days VALUES (?, ?);");
+
+    /// Invalidate service days cached by FindBetterTime.
+    public static final SQLStmt bumpVersionSQL =
+        new SQLStmt("UPDATE calendar_version SET version = version + 1 WHERE id = 0;");
+    public static final SQLStmt insertVersionSQL =
+        new SQLStmt("INSERT INTO calendar_version VALUES (0, 1);");
+
     public VoltTable[] run(String service_id, byte mon, byte tue, byte wed,
                            byte thur, byte fri, byte sat, byte sun,
                            String start, String end)
@@ -57,10 +74,45 @@ public class InsertCalendar extends VoltProcedure {
                                 | FRI * fri
                                 | SAT * sat
                                 | SUN * sun);
-        Date start_date = dateFormat.parse(start);
-        Date end_date = dateFormat.parse(end);
+        long start_date = ServiceDays.parse(start);
+        long end_date = ServiceDays.parse(end);
 
         voltQueueSQL(insertSQL, service_id, weekdays, start, start_date, end, end_date);
-        return voltExecuteSQL();
+        voltQueueSQL(getExceptionsSQL, service_id);
+        voltQueueSQL(getServiceDaysSQL, service_id);
+        VoltTable[] result = voltExecuteSQL();
+
+        // Days dropped by calendar_dates, and days already added by them
+        Set<Long> skipped = new HashSet<Long>();
+        VoltTable exceptions = result[1];
+        while (exceptions.advanceRow()) {
+            if (exceptions.getLong(1) == 2) {
+                skipped.add(exceptions.getLong(0));
+            }
+        }
+        CommonUtils.loadSetFromTableColumn(result[2], 0, skipped);
+
+        // Expand the calendar into the start of each day it runs on
+        int queued = 0;
+        int last = ServiceDays.dayOf(end_date);
+        for (int day = ServiceDays.dayOf(start_date); day <= last; day++) {
+            long day_usec = ServiceDays.startOf(day);
+            byte mask = (byte) (1 << ServiceDays.weekdayOf(day_usec));
+            if ((weekdays & mask) == 0 || skipped.contains(day_usec)) {
+                continue;
+            }
+            if (queued >= MAX_BATCH_SIZE - 1) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+            voltQueueSQL(insertServiceDaySQL, service_id, day_usec);
+            queued++;
+        }
+        voltQueueSQL(bumpVersionSQL);
+        if (voltExecuteSQL()[queued].asScalarLong() == 0) {
+            voltQueueSQL(insertVersionSQL);
+            voltExecuteSQL(true);
+        }
+        return new VoltTable[] { result[0] };
     }
 }
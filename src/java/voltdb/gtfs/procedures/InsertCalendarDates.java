@@ -26,23 +26,50 @@ package voltdb.gtfs.procedures;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 public class InsertCalendarDates extends VoltProcedure {
-    private final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
-
     public final SQLStmt insertSQL =
         new SQLStmt("INSERT INTO calendar_dates VALUES (?, ?, ?, ?);");
 
+    /// Keep service_days in step, whether or not the calendar was loaded first.
+    public final SQLStmt getServiceDaySQL =
+        new SQLStmt("SELECT COUNT(*) FROM service_days WHERE service_id = ? AND day_usec = ?;");
+    public final SQLStmt insertServiceDaySQL =
+        new SQLStmt("INSERT INTO service_days VALUES (?, ?);");
+
+    /// Invalidate service days cached by FindBetterTime.
+    public final SQLStmt bumpVersionSQL =
+        new SQLStmt("UPDATE calendar_version SET version = version + 1 WHERE id = 0;");
+    public final SQLStmt insertVersionSQL =
+        new SQLStmt("INSERT INTO calendar_version VALUES (0, 1);");
+    public final SQLStmt deleteServiceDaySQL =
+        new SQLStmt("DELETE FROM service_days WHERE service_id = ? AND day_usec = ?;");
+
     public VoltTable[] run(String service_id, String date_str, byte exception_type)
         throws ParseException {
-        Date date = dateFormat.parse(date_str);
+        long date = ServiceDays.parse(date_str);
 
         voltQueueSQL(insertSQL, service_id, date_str, date, exception_type);
-        return voltExecuteSQL();
+        voltQueueSQL(getServiceDaySQL, service_id, date);
+        VoltTable[] result = voltExecuteSQL();
+        boolean listed = result[1].asScalarLong() > 0;
+
+        if (exception_type == 1 && !listed) {
+            // Service added for the date
+            voltQueueSQL(insertServiceDaySQL, service_id, date);
+        } else if (exception_type == 2 && listed) {
+            // Service removed for the date
+            voltQueueSQL(deleteServiceDaySQL, service_id, date);
+        }
+        voltQueueSQL(bumpVersionSQL);
+        VoltTable[] bumped = voltExecuteSQL();
+        if (bumped[bumped.length - 1].asScalarLong() == 0) {
+            voltQueueSQL(insertVersionSQL);
+            voltExecuteSQL(true);
+        }
+        return new VoltTable[] { result[0] };
     }
 }
@@ -43,6 +43,12 @@ public class InsertStopTimes extends VoltProcedure {
     public final SQLStmt insertSQL =
         new SQLStmt("INSERT INTO stop_times VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
 
+    /// Invalidate the trip's stops cached by InsertPosition.
+    public final SQLStmt bumpVersionSQL =
+        new SQLStmt("UPDATE stop_times_version SET version = version + 1 WHERE trip_id = ?;");
+    public final SQLStmt insertVersionSQL =
+        new SQLStmt("INSERT INTO stop_times_version VALUES (?, 1);");
+
     public VoltTable[] run(String trip_id, String arrival_str,
                            String departure_str, String stop_id,
                            int stop_seq, String stop_headsign,
@@ -53,6 +59,12 @@ public class InsertStopTimes extends VoltProcedure {
 
         voltQueueSQL(insertSQL, trip_id, arrival_str, arrival_time, departure_str, departure_time,
                      stop_id, stop_seq, stop_headsign, pickup_type, drop_off_type);
-        return voltExecuteSQL();
+        voltQueueSQL(bumpVersionSQL, trip_id);
+        VoltTable[] result = voltExecuteSQL();
+        if (result[1].asScalarLong() == 0) {
+            voltQueueSQL(insertVersionSQL, trip_id);
+            voltExecuteSQL(true);
+        }
+        return new VoltTable[] { result[0] };
     }
 }
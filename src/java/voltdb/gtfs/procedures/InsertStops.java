@@ -26,10 +26,17 @@ package voltdb.gtfs.procedures;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
+import voltdb.GeoGrid;
 
 public class InsertStops extends VoltProcedure {
     public final SQLStmt insertSQL =
-        new SQLStmt("INSERT INTO stops VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        new SQLStmt("INSERT INTO stops VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+
+    /// Invalidate stops cached by InsertPosition.
+    public final SQLStmt bumpVersionSQL =
+        new SQLStmt("UPDATE stops_version SET version = version + 1 WHERE id = 0;");
+    public final SQLStmt insertVersionSQL =
+        new SQLStmt("INSERT INTO stops_version VALUES (0, 1);");
 
     public VoltTable[] run(String stop_id, String stop_code, String stop_name,
                            String stop_desc, double stop_lat, double stop_lon,
@@ -42,7 +49,13 @@ public class InsertStops extends VoltProcedure {
 
         voltQueueSQL(insertSQL, stop_id, stop_code, stop_name, stop_desc,
                      stop_lat, stop_lon, zone_id, stop_url, loc_type_byte,
-                     parent_station);
-        return voltExecuteSQL();
+                     parent_station, GeoGrid.cellOf(stop_lat, stop_lon));
+        voltQueueSQL(bumpVersionSQL);
+        VoltTable[] result = voltExecuteSQL();
+        if (result[1].asScalarLong() == 0) {
+            voltQueueSQL(insertVersionSQL);
+            voltExecuteSQL(true);
+        }
+        return new VoltTable[] { result[0] };
     }
 }
@@ -0,0 +1,309 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the feed files out of a gzip-compressed tarball, such as the archives of
+ * collected positions/ and updates/, without unpacking it to disk. Decompression
+ * runs on its own thread, a few entries ahead of the reader.
+ *
+ * Entries whose names end in .pb or .pb.gz are returned, the latter decompressed.
+ * Everything else in the archive is skipped.
+ */
+public class ArchiveReader implements Runnable {
+    private static final int BLOCK_SIZE = 512;
+
+    // Decompressed entries held waiting for the reader
+    private static final int QUEUE_SIZE = 32;
+
+    private static final Object END_OF_ARCHIVE = new Object();
+
+    public static class Entry {
+        public final String name;
+        public final byte[] data;
+
+        Entry(String name, byte[] data)
+        {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private final File archive;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+    private Thread thread;
+
+    private ArchiveReader(File archive)
+    {
+        this.archive = archive;
+    }
+
+    public static boolean isArchive(String name)
+    {
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * Start decompressing the archive in the background.
+     */
+    public static ArchiveReader open(File archive)
+    {
+        ArchiveReader reader = new ArchiveReader(archive);
+        reader.thread = new Thread(reader, "ArchiveReader " + archive.getName());
+        reader.thread.setDaemon(true);
+        reader.thread.start();
+        return reader;
+    }
+
+    /**
+     * Return the next feed file in the archive, or null at the end of the archive.
+     * Whatever stopped the decompressing thread is thrown here, an Error as is and
+     * any other exception as an IOException.
+     */
+    public Entry next() throws IOException, InterruptedException
+    {
+        Object item = queue.take();
+        if (item == END_OF_ARCHIVE) {
+            // Leave the marker for any further calls
+            queue.put(END_OF_ARCHIVE);
+            return null;
+        } else if (item instanceof Throwable) {
+            queue.put(END_OF_ARCHIVE);
+            if (item instanceof IOException) {
+                throw (IOException) item;
+            } else if (item instanceof Error) {
+                throw (Error) item;
+            }
+            throw new IOException((Throwable) item);
+        }
+        return (Entry) item;
+    }
+
+    /**
+     * Stop decompressing, e.g. when giving up on the archive before its end.
+     */
+    public void close()
+    {
+        thread.interrupt();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(archive)));
+            try {
+                readTar(in);
+            } finally {
+                in.close();
+            }
+            queue.put(END_OF_ARCHIVE);
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (Throwable t) {
+            // Anything else, e.g. a corrupt entry or one too large to hold, is handed
+            // to the reader, which would otherwise wait for the end of the archive.
+            try {
+                queue.put(t);
+            } catch (InterruptedException ie) {
+                // Closed
+            }
+        }
+    }
+
+    private void readTar(InputStream in) throws IOException, InterruptedException
+    {
+        byte[] header = new byte[BLOCK_SIZE];
+        String longName = null;
+        while (readBlock(in, header)) {
+            if (isZeroBlock(header)) {
+                break; // End of archive
+            }
+
+            String name = longName != null ? longName : headerName(header);
+            longName = null;
+            long size = parseOctal(header, 124, 12);
+            byte type = header[156];
+
+            if (type == 'L') {
+                // GNU long name, the data is the name of the next entry
+                longName = string(readData(in, size), 0, (int) size);
+                continue;
+            }
+
+            boolean isFile = type == '0' || type == 0;
+            if (isFile && name.endsWith(".pb")) {
+                queue.put(new Entry(name, readData(in, size)));
+            } else if (isFile && name.endsWith(".pb.gz")) {
+                queue.put(new Entry(name.substring(0, name.length() - 3),
+                                    gunzip(readData(in, size))));
+            } else {
+                skipData(in, size);
+            }
+        }
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int read = 0;
+        while (read < block.length) {
+            int n = in.read(block, read, block.length - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return false; // Archive ended without its end-of-archive blocks
+                }
+                throw new EOFException("Truncated tar header");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private static byte[] readData(InputStream in, long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Archive entry too large: " + size + " bytes");
+        }
+        byte[] data = new byte[(int) size];
+        int read = 0;
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated tar entry");
+            }
+            read += n;
+        }
+        skipFully(in, padding(size));
+        return data;
+    }
+
+    private static void skipData(InputStream in, long size) throws IOException
+    {
+        skipFully(in, size + padding(size));
+    }
+
+    private static long padding(long size)
+    {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException
+    {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated tar entry");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block)
+    {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The entry name, including the ustar prefix if there is one.
+     */
+    private static String headerName(byte[] header)
+    {
+        String name = string(header, 0, 100);
+        if (string(header, 257, 5).equals("ustar")) {
+            String prefix = string(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value != 0) {
+                    break;
+                }
+                continue;
+            }
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * A NUL-terminated ASCII field.
+     */
+    private static String string(byte[] bytes, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        char[] chars = new char[end - offset];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (bytes[offset + i] & 0xff);
+        }
+        return new String(chars);
+    }
+}
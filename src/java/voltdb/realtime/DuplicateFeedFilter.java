@@ -0,0 +1,160 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes feeds that have been seen recently, so that a publisher serving the
+ * same feed several polls in a row costs neither parsing nor procedure calls.
+ * A feed is identified by its header timestamp plus a hash of its raw bytes.
+ * Only the header timestamp is decoded, the rest of the feed is just hashed.
+ */
+public class DuplicateFeedFilter {
+    // Number of recently seen feeds to remember, enough for a few feeds polled in turn
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<FeedKey, Boolean> seen;
+    private final AtomicLong skipped = new AtomicLong();
+
+    public DuplicateFeedFilter()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DuplicateFeedFilter(final int capacity)
+    {
+        seen = new LinkedHashMap<FeedKey, Boolean>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FeedKey, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the feed has been seen recently and can be skipped, otherwise
+     * remembers it and returns false.
+     */
+    public boolean isDuplicate(byte[] data, int offset, int length) throws IOException
+    {
+        FeedKey key = new FeedKey(headerTimestamp(data, offset, length),
+                                  hash(data, offset, length));
+        synchronized (seen) {
+            if (seen.put(key, Boolean.TRUE) == null) {
+                return false;
+            }
+        }
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Number of feeds recognized as duplicates so far.
+     */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * Decode only FeedHeader.timestamp, skipping over everything else.
+     */
+    static long headerTimestamp(byte[] data, int offset, int length) throws IOException
+    {
+        CodedInputStream in = FeedDecoder.newInput(data, offset, length);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER) {
+                in.skipField(tag);
+                continue;
+            }
+            int limit = in.pushLimit(in.readRawVarint32());
+            while ((tag = in.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) ==
+                    GtfsRealtime.FeedHeader.TIMESTAMP_FIELD_NUMBER) {
+                    return in.readUInt64();
+                }
+                in.skipField(tag);
+            }
+            in.popLimit(limit);
+        }
+        return 0;
+    }
+
+    static long hash(byte[] data)
+    {
+        return hash(data, 0, data.length);
+    }
+
+    /**
+     * 64-bit FNV-1a, cheap enough to run over every feed.
+     */
+    static long hash(byte[] data, int offset, int length)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static class FeedKey {
+        private final long timestamp;
+        private final long hash;
+
+        FeedKey(long timestamp, long hash)
+        {
+            this.timestamp = timestamp;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof FeedKey)) {
+                return false;
+            }
+            FeedKey other = (FeedKey) o;
+            return timestamp == other.timestamp && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (hash ^ (hash >>> 32)) * 31 + (int) (timestamp ^ (timestamp >>> 32));
+        }
+    }
+}
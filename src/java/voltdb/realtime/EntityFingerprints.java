@@ -0,0 +1,93 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers a fingerprint of the last payload forwarded for each feed entity,
+ * so that entities repeated unchanged from one poll to the next can be dropped
+ * before they cost a procedure call. The least recently seen entities are
+ * evicted once the cache is full, which forgets finished trips.
+ */
+public class EntityFingerprints {
+    // Comfortably more than the live vehicles and trip updates of a large agency
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final Map<String, Long> fingerprints;
+    private final AtomicLong unchanged = new AtomicLong();
+
+    public EntityFingerprints()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EntityFingerprints(final int capacity)
+    {
+        fingerprints = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Record the fingerprint of an entity's payload. Returns true if the entity is
+     * new or has changed since it was last recorded.
+     */
+    public boolean update(String key, long fingerprint)
+    {
+        Long previous;
+        synchronized (fingerprints) {
+            previous = fingerprints.put(key, fingerprint);
+        }
+        if (previous != null && previous == fingerprint) {
+            unchanged.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget an entity, e.g. because forwarding its last payload failed, so that
+     * the next copy of it is forwarded even if unchanged.
+     */
+    public void forget(String key)
+    {
+        synchronized (fingerprints) {
+            fingerprints.remove(key);
+        }
+    }
+
+    /**
+     * Number of entities found unchanged so far.
+     */
+    public long getUnchangedCount()
+    {
+        return unchanged.get();
+    }
+}
@@ -0,0 +1,88 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.IOException;
+
+/**
+ * Decodes a FeedMessage one entity at a time instead of building the whole
+ * message, so that only the entity being handled has to be held as objects.
+ * Entities are handed over encoded, to be read with whichever decoder suits
+ * them, e.g. FeedEntity.parseFrom or VehiclePositionReader.
+ */
+public class FeedDecoder {
+    public interface Handler {
+        /**
+         * Called once per feed, before any entity.
+         */
+        void header(GtfsRealtime.FeedHeader header) throws IOException, InterruptedException;
+
+        /**
+         * Called for each encoded FeedEntity in feed order.
+         */
+        void entity(byte[] raw) throws IOException, InterruptedException;
+    }
+
+    public static void decode(byte[] data, int offset, int length, Handler handler)
+    throws IOException, InterruptedException {
+        // The header is conventionally written first, but look for it wherever it is so that
+        // the handler always gets it before the entities. Skipping over entities is cheap.
+        CodedInputStream in = newInput(data, offset, length);
+        GtfsRealtime.FeedHeader header = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER) {
+                header = GtfsRealtime.FeedHeader.parseFrom(in.readBytes());
+                break;
+            }
+            in.skipField(tag);
+        }
+        if (header == null) {
+            throw new InvalidProtocolBufferException("Feed has no header");
+        }
+        handler.header(header);
+
+        in = newInput(data, offset, length);
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER) {
+                handler.entity(in.readRawBytes(in.readRawVarint32()));
+            } else {
+                in.skipField(tag);
+            }
+        }
+    }
+
+    static CodedInputStream newInput(byte[] data, int offset, int length)
+    {
+        CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+        // The default 64MB limit would reject large aggregated feeds.
+        in.setSizeLimit(Integer.MAX_VALUE);
+        return in;
+    }
+}
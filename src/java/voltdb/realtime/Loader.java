@@ -24,27 +24,70 @@
 package voltdb.realtime;
 
 import com.google.common.net.HostAndPort;
-import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
+import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NoConnectionsException;
 import org.voltdb.client.ProcCallException;
+import org.voltdb.client.ProcedureCallback;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 public class Loader {
-    // Duration of vehicle positions to keep in the database
-    private static final long HISTORY = 30l * 24l * 3600l * 1000l; // 1 month in milliseconds
+    // Procedure calls allowed in flight at once, 0 makes every call block until it completes
+    static final int DEFAULT_MAX_OUTSTANDING = 1000;
+
+    // Files decoded ahead of the one being submitted, per parser thread, when replaying a directory
+    private static final int REPLAY_READ_AHEAD = 4;
+
+    // Decoded entities a replayed file may hold waiting to be submitted
+    private static final int REPLAY_QUEUE_SIZE = 256;
+
+    // Bytes read from the start of a file to find its header timestamp. The header is
+    // the first field of a feed, and only a few dozen bytes long.
+    private static final int HEADER_PREFIX_SIZE = 4096;
+
+    // Feeds of an archive held back to be loaded in header timestamp order, tar
+    // doesn't keep the entries of a directory sorted by name
+    private static final int ARCHIVE_REORDER_WINDOW = 256;
+
+    private static final Object END_OF_FEED = new Object();
 
     private static final FilenameFilter protobufFileFilter = new FilenameFilter() {
         @Override
         public boolean accept(File file, String s) {
-            if (s.endsWith(".pb")) {
+            if (s.endsWith(".pb") || s.endsWith(".pb.gz")) {
                 return true;
             } else {
                 return false;
@@ -52,134 +95,1020 @@ public class Loader {
         }
     };
 
+    private static final FilenameFilter archiveFileFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File file, String s) {
+            return ArchiveReader.isArchive(s);
+        }
+    };
+
+    private final Client client;
+    // Permits for asynchronous calls, null when loading synchronously
+    private final Semaphore outstanding;
+    private final AtomicLong failures = new AtomicLong();
+    private final DuplicateFeedFilter duplicates = new DuplicateFeedFilter();
+    // Archived feeds loaded after a newer one, beyond the reach of the reorder window
+    private final AtomicLong lateFeeds = new AtomicLong();
+    // Kept apart by entity kind rather than by a prefixed key, so that the key of a
+    // vehicle is the reader's cached String and costs nothing to build
+    private final EntityFingerprints vehicleFingerprints = new EntityFingerprints();
+    private final EntityFingerprints updateFingerprints = new EntityFingerprints();
+    // Feed files are read into a buffer per thread, grown to the largest file seen
+    private final ThreadLocal<byte[]> fileBuffer = new ThreadLocal<byte[]>();
+    private final ThreadLocal<VehiclePositionReader> vehicleReader =
+        new ThreadLocal<VehiclePositionReader>() {
+            @Override
+            protected VehiclePositionReader initialValue() {
+                return new VehiclePositionReader();
+            }
+        };
+    // Copies the arrivals gathered from each feed to stop_arrivals
+    private final ExecutorService stopArrivals = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Loader stop arrivals");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    // Feeds whose arrivals are waiting to be copied, guarded by itself
+    private final AtomicInteger pendingArrivals = new AtomicInteger();
+
+    public Loader(Client client, int maxOutstanding)
+    {
+        this.client = client;
+        this.outstanding = maxOutstanding > 0 ? new Semaphore(maxOutstanding) : null;
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 2) {
+        if (args.length < 2 || args.length > 4) {
             System.exit(-1);
         }
 
-        String hostname = HostAndPort.fromString(args[1]).getHostText();
-        int port = HostAndPort.fromString(args[1]).getPortOrDefault(21212);
+        int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+        if (args.length >= 3) {
+            maxOutstanding = Integer.parseInt(args[2]);
+        }
+        int parsers = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 4) {
+            parsers = Integer.parseInt(args[3]);
+        }
 
-        Client client = ClientFactory.createClient(new ClientConfig());
-        client.createConnection(hostname, port);
+        Client client = connect(args[1]);
 
+        Loader loader = new Loader(client, maxOutstanding);
         File path = new File(args[0]);
 
         if (path.isDirectory()) {
             System.out.println("Loading files from directory " + path);
-            for (File file : path.listFiles(protobufFileFilter)) {
-                loadFile(file.getAbsolutePath(), client);
+            loader.replay(path.listFiles(protobufFileFilter), parsers);
+            File[] archives = path.listFiles(archiveFileFilter);
+            Arrays.sort(archives);
+            for (File archive : archives) {
+                loader.loadArchive(archive);
             }
+        } else if (path.isFile() && ArchiveReader.isArchive(path.getName())) {
+            loader.loadArchive(path);
         } else if (path.isFile()) {
-            loadFile(path.getAbsolutePath(), client);
+            loader.loadFile(path.getAbsolutePath());
         }
 
+        loader.drain();
         client.close();
+
+        if (loader.getSkippedFeedCount() > 0) {
+            System.out.println("Skipped " + loader.getSkippedFeedCount() + " duplicate feeds");
+        }
+        if (loader.getLateFeedCount() > 0) {
+            System.err.println(loader.getLateFeedCount() + " archived feeds were loaded out of " +
+                               "timestamp order, their updates may have been rejected as stale");
+        }
+        if (loader.getUnchangedEntityCount() > 0) {
+            System.out.println("Skipped " + loader.getUnchangedEntityCount() + " unchanged entities");
+        }
+        if (loader.getFailureCount() > 0) {
+            System.err.println(loader.getFailureCount() + " procedure calls failed");
+        }
+    }
+
+    /**
+     * Connect to every server in a comma-separated list of hostname[:port]. Client
+     * affinity sends each single-partition call straight to the node that owns its
+     * partition, so ingest spreads over the cluster as more servers are listed. All
+     * calls for a trip go to the same node, which keeps them in order.
+     */
+    static Client connect(String servers) throws IOException
+    {
+        ClientConfig config = new ClientConfig();
+        config.setClientAffinity(true);
+        Client client = ClientFactory.createClient(config);
+        for (String server : servers.split(",")) {
+            HostAndPort host = HostAndPort.fromString(server.trim());
+            client.createConnection(host.getHostText(), host.getPortOrDefault(21212));
+        }
+        return client;
+    }
+
+    /**
+     * Wait for every procedure call made so far to complete, including the ones that
+     * follow from the results of others.
+     */
+    public void drain() throws NoConnectionsException, InterruptedException
+    {
+        while (true) {
+            client.drain();
+            synchronized (pendingArrivals) {
+                if (pendingArrivals.get() == 0) {
+                    return;
+                }
+                while (pendingArrivals.get() > 0) {
+                    pendingArrivals.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of procedure calls that have failed since this loader was created.
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Number of feeds skipped because they repeated a recently loaded feed.
+     */
+    public long getSkippedFeedCount()
+    {
+        return duplicates.getSkippedCount();
+    }
+
+    /**
+     * Number of archived feeds loaded after a newer feed of the same archive, because
+     * they were further out of order than ARCHIVE_REORDER_WINDOW. Their entities may
+     * have been rejected as stale.
+     */
+    public long getLateFeedCount()
+    {
+        return lateFeeds.get();
+    }
+
+    /**
+     * Number of feed entities skipped because they were unchanged since the last feed.
+     */
+    public long getUnchangedEntityCount()
+    {
+        return vehicleFingerprints.getUnchangedCount() + updateFingerprints.getUnchangedCount();
     }
 
-    private static void loadFile(String path, Client client)
+    /**
+     * Load all entities of the feed file at the given path. Returns once every
+     * procedure call made for the file has completed, or as soon as a call
+     * cannot be queued.
+     */
+    public void loadFile(String path)
     {
         System.out.println("Loading " + path);
 
         try {
-            GtfsRealtime.FeedMessage feed = parseFeed(path);
-            long ts = feed.getHeader().getTimestamp() * 1000 * 1000;
-            List<GtfsRealtime.FeedEntity> entities = feed.getEntityList();
-            for (GtfsRealtime.FeedEntity entity : entities) {
+            ByteBuffer data = readFile(path);
+            if (!duplicates.isDuplicate(data.array(), 0, data.limit())) {
+                loadFeed(data.array(), data.limit()).await();
+            }
+        } catch (Throwable t) {
+            System.err.println(t);
+        }
+    }
+
+    /**
+     * Load a feed that is already in memory, e.g. one just downloaded. Returns once
+     * every procedure call made for the feed has completed.
+     */
+    public void load(String name, byte[] data)
+    {
+        System.out.println("Loading " + name);
+
+        try {
+            if (!duplicates.isDuplicate(data, 0, data.length)) {
+                loadFeed(data, data.length).await();
+            }
+        } catch (Throwable t) {
+            System.err.println(t);
+        }
+    }
+
+    /**
+     * Load a batch of feed files, typically a dated archive directory. Files are
+     * decoded on a pool of worker threads but submitted to the database strictly in
+     * header timestamp order, so that the updates of each trip arrive in timestamp
+     * order and are not rejected as stale. File names, e.g. "mbta-vehicles-Thu Mar 21
+     * ...", don't sort by time. Returns once every procedure call has completed.
+     */
+    public void replay(File[] files, int parsers) throws InterruptedException, IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(parsers, 1));
+        LinkedList<FeedQueue> decoding = new LinkedList<FeedQueue>();
+        int readAhead = Math.max(parsers, 1) * REPLAY_READ_AHEAD;
+
+        try {
+            files = sortByFeedTime(files, pool);
+            int next = 0;
+            for (File file : files) {
+                while (next < files.length && decoding.size() < readAhead) {
+                    FeedQueue queue = new FeedQueue(files[next++].getAbsolutePath());
+                    pool.execute(queue);
+                    decoding.add(queue);
+                }
+
+                System.out.println("Loading " + file);
                 try {
-                    if (entity.hasVehicle()) {
-                        insertPosition(entity.getVehicle(), client);
-                    } else if (entity.hasTripUpdate()) {
-                        insertUpdate(entity.getTripUpdate(), ts, client);
-                    }
-                } catch (ProcCallException e) {
+                    // Don't wait for the calls to complete, calls for the next file
+                    // queue up behind them in order.
+                    decoding.removeFirst().drainTo(new FeedSubmitter());
+                } catch (IOException e) {
                     System.err.println(e);
-                    break;
                 }
             }
-        } catch (Throwable t) {
-            System.err.println(t);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (outstanding != null) {
+            drain();
+        }
+    }
+
+    /**
+     * Load the feed files in a tarball without unpacking it. The archive is decompressed
+     * on a separate thread while its feeds are loaded. Feeds are submitted in header
+     * timestamp order within a window of ARCHIVE_REORDER_WINDOW feeds. A feed further
+     * out of order is still loaded, but reported and counted as late, since the
+     * procedures may reject its entities as stale. Returns once every procedure call
+     * has completed.
+     */
+    public void loadArchive(File archive) throws InterruptedException, IOException
+    {
+        System.out.println("Loading archive " + archive);
+
+        PriorityQueue<ArchivedFeed> window = new PriorityQueue<ArchivedFeed>();
+        // The newest header timestamp loaded so far
+        long newest = Long.MIN_VALUE;
+        ArchiveReader reader = ArchiveReader.open(archive);
+        try {
+            ArchiveReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                try {
+                    if (duplicates.isDuplicate(entry.data, 0, entry.data.length)) {
+                        continue;
+                    }
+                    long timestamp = DuplicateFeedFilter.headerTimestamp(entry.data, 0, entry.data.length);
+                    window.add(new ArchivedFeed(timestamp, entry));
+                } catch (IOException e) {
+                    System.err.println(entry.name + ": " + e);
+                    continue;
+                }
+
+                if (window.size() > ARCHIVE_REORDER_WINDOW) {
+                    newest = loadArchivedFeed(archive, window.poll(), newest);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(archive + ": " + e);
+        } finally {
+            reader.close();
+        }
+
+        while (!window.isEmpty()) {
+            newest = loadArchivedFeed(archive, window.poll(), newest);
+        }
+
+        if (outstanding != null) {
+            drain();
         }
     }
 
-    private static void insertPosition(GtfsRealtime.VehiclePosition vehicle, Client client)
-    throws IOException, ProcCallException {
-        if (vehicle.hasTrip()) {
-            GtfsRealtime.TripDescriptor trip = vehicle.getTrip();
-            GtfsRealtime.Position position = vehicle.getPosition();
-            long ts = vehicle.getTimestamp();
-            long tsInMicros = ts * 1000 * 1000;
+    /**
+     * @param newest the newest header timestamp loaded from the archive so far
+     * @return the newest header timestamp loaded from the archive, including this feed
+     */
+    private long loadArchivedFeed(File archive, ArchivedFeed feed, long newest)
+    throws InterruptedException {
+        System.out.println("Loading " + archive + ":" + feed.entry.name);
+        if (feed.timestamp < newest) {
+            lateFeeds.incrementAndGet();
+            System.err.println(archive + ":" + feed.entry.name + " is older than a feed already " +
+                               "loaded, increase ARCHIVE_REORDER_WINDOW or unpack the archive");
+        }
+        try {
+            // Calls for the next feed queue up behind these ones in order
+            loadFeed(feed.entry.data, feed.entry.data.length);
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        return Math.max(newest, feed.timestamp);
+    }
+
+    /**
+     * Order feed files by their header timestamp, and then by name. Feeds without one
+     * are placed by the file's modification time instead. The timestamps are read on
+     * the pool, from the start of each file only.
+     */
+    private File[] sortByFeedTime(File[] files, ExecutorService pool)
+    throws IOException, InterruptedException {
+        List<Future<FeedFile>> reads = new ArrayList<Future<FeedFile>>(files.length);
+        for (final File file : files) {
+            reads.add(pool.submit(new Callable<FeedFile>() {
+                @Override
+                public FeedFile call()
+                {
+                    return new FeedFile(readFeedTime(file), file);
+                }
+            }));
+        }
+
+        FeedFile[] feeds = new FeedFile[files.length];
+        for (int i = 0; i < files.length; i++) {
             try {
-                client.callProcedure("InsertPosition",
-                                     trip.getTripId(),
-                                     trip.getStartDate(),
-                                     trip.getScheduleRelationship().getNumber(),
-                                     position.getLatitude(),
-                                     position.getLongitude(),
-                                     vehicle.getCurrentStopSequence(),
-                                     tsInMicros,
-                                     HISTORY);
-            } catch (ProcCallException e) {
-                System.err.println(vehicle.toString());
-                throw e;
+                feeds[i] = reads.get(i).get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        Arrays.sort(feeds);
+
+        File[] sorted = new File[feeds.length];
+        for (int i = 0; i < feeds.length; i++) {
+            sorted[i] = feeds[i].file;
+        }
+        return sorted;
+    }
+
+    /**
+     * The header timestamp of a feed file in seconds, or its modification time if it
+     * has none. Only the file's first HEADER_PREFIX_SIZE bytes are read, unless the
+     * header doesn't end within them.
+     */
+    private long readFeedTime(File file)
+    {
+        long timestamp = 0;
+        try {
+            byte[] prefix = new byte[HEADER_PREFIX_SIZE];
+            int length = readPrefix(file.getPath(), prefix);
+            try {
+                timestamp = DuplicateFeedFilter.headerTimestamp(prefix, 0, length);
+            } catch (InvalidProtocolBufferException e) {
+                if (length < prefix.length) {
+                    throw e;
+                }
+                ByteBuffer data = readFile(file.getPath());
+                timestamp = DuplicateFeedFilter.headerTimestamp(data.array(), 0, data.limit());
+            }
+        } catch (IOException e) {
+            System.err.println(file + ": " + e);
+        }
+        if (timestamp == 0) {
+            timestamp = file.lastModified() / 1000;
+        }
+        return timestamp;
+    }
+
+    /**
+     * A feed file, ordered by its header timestamp (in seconds) and then by name.
+     */
+    private static class FeedFile implements Comparable<FeedFile> {
+        final long timestamp;
+        final File file;
+
+        FeedFile(long timestamp, File file)
+        {
+            this.timestamp = timestamp;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(FeedFile o)
+        {
+            if (timestamp != o.timestamp) {
+                return timestamp < o.timestamp ? -1 : 1;
+            }
+            return file.compareTo(o.file);
+        }
+    }
+
+    /**
+     * A feed read from an archive, ordered by its header timestamp and then by name.
+     */
+    private static class ArchivedFeed implements Comparable<ArchivedFeed> {
+        final long timestamp;
+        final ArchiveReader.Entry entry;
+
+        ArchivedFeed(long timestamp, ArchiveReader.Entry entry)
+        {
+            this.timestamp = timestamp;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(ArchivedFeed o)
+        {
+            if (timestamp != o.timestamp) {
+                return timestamp < o.timestamp ? -1 : 1;
+            }
+            return entry.name.compareTo(o.entry.name);
+        }
+    }
+
+    /**
+     * Decode a feed and submit its entities as they are decoded.
+     */
+    private FeedCompletion loadFeed(byte[] data, int length) throws IOException, InterruptedException
+    {
+        FeedSubmitter submitter = new FeedSubmitter();
+        FeedDecoder.decode(data, 0, length, submitter);
+        return submitter.finish();
+    }
+
+    /**
+     * Submits the entities of one feed, skipping those that can't be loaded, i.e. have
+     * no trip ID set, and those whose payload is the same as when they were last seen.
+     */
+    private class FeedSubmitter implements FeedDecoder.Handler {
+        private final FeedCompletion completion = new FeedCompletion();
+        private final StopArrivalBatch arrivals = new StopArrivalBatch(completion);
+        private long ts;
+
+        @Override
+        public void header(GtfsRealtime.FeedHeader header)
+        {
+            ts = header.getTimestamp() * 1000 * 1000;
+        }
+
+        @Override
+        public void entity(byte[] raw) throws IOException, InterruptedException
+        {
+            VehiclePositionReader vehicle = vehicleReader.get();
+            if (vehicle.read(raw)) {
+                position(vehicle, raw);
+            } else if (!vehicle.isVehicle()) {
+                update(GtfsRealtime.FeedEntity.parseFrom(raw), raw);
+            }
+        }
+
+        /**
+         * Submit a vehicle position, read by the calling thread's reader.
+         */
+        void position(VehiclePositionReader vehicle, byte[] raw)
+        throws IOException, InterruptedException {
+            String id = vehicle.getEntityId();
+            String key = id != null ? id : vehicle.getTripId();
+            if (!vehicleFingerprints.update(key, DuplicateFeedFilter.hash(raw))) {
+                return;
+            }
+
+            completion.add();
+            arrivals.add();
+            insertPosition(vehicle,
+                           new ArrivalsCallback(vehicleFingerprints, key, raw, completion, arrivals));
+        }
+
+        /**
+         * Submit an entity other than a vehicle position.
+         */
+        void update(GtfsRealtime.FeedEntity entity, byte[] raw)
+        throws IOException, InterruptedException {
+            if (!entity.hasTripUpdate() || !entity.getTripUpdate().hasTrip()) {
+                return;
+            }
+
+            String key = entity.hasId() ? entity.getId() : entity.getTripUpdate().getTrip().getTripId();
+            if (!updateFingerprints.update(key, DuplicateFeedFilter.hash(raw))) {
+                return;
+            }
+
+            completion.add();
+            arrivals.add();
+            insertUpdate(entity.getTripUpdate(), ts,
+                         new ArrivalsCallback(updateFingerprints, key, raw, completion, arrivals));
+        }
+
+        FeedCompletion finish()
+        {
+            arrivals.done();
+            completion.complete();
+            return completion;
+        }
+    }
+
+    /**
+     * Tracks the procedure calls made for one feed, whose number isn't known until the
+     * feed has been decoded to the end.
+     */
+    private static class FeedCompletion {
+        // Starts at one for the feed itself, released once all of it has been submitted
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        void add()
+        {
+            pending.incrementAndGet();
+        }
+
+        void complete()
+        {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        void await() throws InterruptedException
+        {
+            done.await();
+        }
+    }
+
+    /**
+     * Decodes a feed file on a worker thread and hands its entities over to the
+     * submitting thread, holding only a few decoded entities at a time.
+     */
+    private class FeedQueue implements Runnable, FeedDecoder.Handler {
+        private final String path;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(REPLAY_QUEUE_SIZE);
+
+        FeedQueue(String path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                ByteBuffer data = readFile(path);
+                if (!duplicates.isDuplicate(data.array(), 0, data.limit())) {
+                    FeedDecoder.decode(data.array(), 0, data.limit(), this);
+                }
+                queue.put(END_OF_FEED);
+            } catch (InterruptedException e) {
+                // Shutting down
+            } catch (Throwable t) {
+                try {
+                    queue.put(t);
+                    queue.put(END_OF_FEED);
+                } catch (InterruptedException e) {
+                    // Shutting down
+                }
+            }
+        }
+
+        @Override
+        public void header(GtfsRealtime.FeedHeader header) throws InterruptedException
+        {
+            queue.put(header);
+        }
+
+        /**
+         * Vehicle positions are cheap to read, they are passed on raw and read by the
+         * submitting thread. Anything else is parsed here.
+         */
+        @Override
+        public void entity(byte[] raw) throws IOException, InterruptedException
+        {
+            if (vehicleReader.get().read(raw)) {
+                queue.put(raw);
+            } else if (!vehicleReader.get().isVehicle()) {
+                queue.put(GtfsRealtime.FeedEntity.parseFrom(raw));
+                queue.put(raw);
+            }
+        }
+
+        /**
+         * Pass everything decoded from the file on to the handler. The queue is drained to
+         * the end even if the handler fails, so the worker thread is never left blocked.
+         */
+        void drainTo(FeedSubmitter submitter) throws IOException, InterruptedException
+        {
+            Throwable error = null;
+            GtfsRealtime.FeedEntity parsed = null;
+            Object item;
+            while ((item = queue.take()) != END_OF_FEED) {
+                if (error != null) {
+                    continue;
+                }
+                try {
+                    if (item instanceof Throwable) {
+                        error = (Throwable) item;
+                    } else if (item instanceof GtfsRealtime.FeedHeader) {
+                        submitter.header((GtfsRealtime.FeedHeader) item);
+                    } else if (item instanceof GtfsRealtime.FeedEntity) {
+                        // Its raw bytes follow
+                        parsed = (GtfsRealtime.FeedEntity) item;
+                    } else if (parsed != null) {
+                        submitter.update(parsed, (byte[]) item);
+                        parsed = null;
+                    } else {
+                        VehiclePositionReader vehicle = vehicleReader.get();
+                        vehicle.read((byte[]) item);
+                        submitter.position(vehicle, (byte[]) item);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            submitter.finish();
+
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException(error);
             }
-        } else {
-            // Skip entries with no trip ID set
         }
     }
 
-    private static void insertUpdate(GtfsRealtime.TripUpdate update, long ts, Client client)
-    throws IOException, ProcCallException {
-        if (update.hasTrip()) {
-            GtfsRealtime.TripDescriptor trip = update.getTrip();
-            String trip_id = trip.getTripId();
-            String start = trip.getStartDate();
-            // We might want to consider building arrays or a VoltTable for the stop time updates,
-            // so this all could be done in one transaction.
-            List<GtfsRealtime.TripUpdate.StopTimeUpdate> updates = update.getStopTimeUpdateList();
+    private void insertPosition(VehiclePositionReader vehicle, ProcedureCallback callback)
+    throws IOException, InterruptedException {
+        long ts = vehicle.getTimestamp();
+        long tsInMicros = ts * 1000 * 1000;
+        call(callback,
+             "InsertPosition",
+             vehicle.getTripId(),
+             vehicle.getStartDate(),
+             vehicle.getScheduleRelationship(),
+             vehicle.getLatitude(),
+             vehicle.getLongitude(),
+             vehicle.getCurrentStopSequence(),
+             tsInMicros);
+    }
+
+    private void insertUpdate(GtfsRealtime.TripUpdate update, long ts, ProcedureCallback callback)
+    throws IOException, InterruptedException {
+        GtfsRealtime.TripDescriptor trip = update.getTrip();
+        List<GtfsRealtime.TripUpdate.StopTimeUpdate> updates = update.getStopTimeUpdateList();
+        // The stop time updates travel as parallel arrays so that the whole trip update
+        // is applied in a single transaction.
+        int[] stopSequences = new int[updates.size()];
+        long[] delaysInMicros = new long[updates.size()];
+        for (int i = 0; i < updates.size(); i++) {
+            GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate = updates.get(i);
+            stopSequences[i] = stopTimeUpdate.getStopSequence();
+            delaysInMicros[i] = stopTimeUpdate.getArrival().getDelay() * 1000l * 1000l;
+        }
+        call(callback,
+             "InsertTripUpdate",
+             trip.getTripId(),
+             trip.getStartDate(),
+             ts,
+             trip.getScheduleRelationship().getNumber(),
+             stopSequences,
+             delaysInMicros);
+    }
+
+    /**
+     * Invoke a procedure, asynchronously if there is a limit on outstanding calls, blocking
+     * otherwise. Either way the outcome is delivered to the callback.
+     */
+    private void call(ProcedureCallback callback, String procName, Object... params)
+    throws IOException, InterruptedException {
+        if (outstanding == null) {
+            ClientResponse response;
             try {
-                client.callProcedure("InsertUpdate",
-                                     trip_id,
-                                     start,
-                                     ts,
-                                     trip.getScheduleRelationship().getNumber(),
-                                     HISTORY);
-                for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : updates) {
-                    int delay = stopTimeUpdate.getArrival().getDelay();
-                    long delayInMicros = delay * 1000 * 1000;
-                    client.callProcedure("InsertStopTimeUpdate",
-                                         trip_id,
-                                         start,
-                                         ts,
-                                         stopTimeUpdate.getStopSequence(),
-                                         delayInMicros);
-                }
-                // As an alternative to this extra proc call, the stop time updates could be sorted
-                // by descending stop sequence and processed incrementally on insert
-                // (or instead of insert).
-                // Or there's always the single-transaction approach.
-                client.callProcedure("EffectStopTimeUpdates",
-                                     trip_id,
-                                     start,
-                                     ts);
+                response = client.callProcedure(procName, params);
             } catch (ProcCallException e) {
-                System.err.println(update.toString());
-                throw e;
+                response = e.getClientResponse();
+            }
+            try {
+                callback.clientCallback(response);
+            } catch (Exception e) {
+                System.err.println(e);
+            }
+            return;
+        }
+
+        outstanding.acquire();
+        boolean queued = false;
+        try {
+            queued = client.callProcedure(callback, procName, params);
+        } finally {
+            if (!queued) {
+                // The callback will never fire for a call that wasn't queued.
+                outstanding.release();
+                failures.incrementAndGet();
+            }
+        }
+        if (!queued) {
+            throw new IOException("Failed to queue " + procName);
+        }
+    }
+
+    /**
+     * Reports a failed call for one feed entity and counts it as complete for the feed
+     * it came from. A failed entity is forgotten by the fingerprint cache, so that it
+     * is retried with the next feed.
+     */
+    private class EntityCallback implements ProcedureCallback {
+        // The cache the entity's fingerprint was recorded in, under key
+        private final EntityFingerprints fingerprints;
+        private final String key;
+        // The encoded entity, only decoded to report a failure
+        private final byte[] raw;
+        private final FeedCompletion completion;
+
+        EntityCallback(EntityFingerprints fingerprints, String key, byte[] raw,
+                       FeedCompletion completion)
+        {
+            this.fingerprints = fingerprints;
+            this.key = key;
+            this.raw = raw;
+            this.completion = completion;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response)
+        {
+            try {
+                if (response.getStatus() != ClientResponse.SUCCESS) {
+                    fingerprints.forget(key);
+                    failures.incrementAndGet();
+                    System.err.println(response.getStatusString());
+                    System.err.println(describe());
+                }
+            } finally {
+                if (outstanding != null) {
+                    outstanding.release();
+                }
+                completion.complete();
+            }
+        }
+
+        private String describe()
+        {
+            try {
+                return GtfsRealtime.FeedEntity.parseFrom(raw).toString();
+            } catch (InvalidProtocolBufferException e) {
+                return e.toString();
+            }
+        }
+    }
+
+    /**
+     * An EntityCallback that also hands the arrivals returned by a successful call to
+     * the feed's StopArrivalBatch.
+     */
+    private class ArrivalsCallback extends EntityCallback {
+        private final StopArrivalBatch batch;
+
+        ArrivalsCallback(EntityFingerprints fingerprints, String key, byte[] raw,
+                         FeedCompletion completion, StopArrivalBatch batch)
+        {
+            super(fingerprints, key, raw, completion);
+            this.batch = batch;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response)
+        {
+            try {
+                if (response.getStatus() == ClientResponse.SUCCESS) {
+                    batch.collect(response.getResults()[0]);
+                }
+                batch.done();
+            } finally {
+                super.clientCallback(response);
+            }
+        }
+    }
+
+    /**
+     * Gathers the upcoming arrivals returned for the entities of one feed by stop, and
+     * copies them to the stop-partitioned stop_arrivals table once every call of the
+     * feed that may return some has, with one UpdateStopArrivals call per stop. The
+     * feed is not complete until those calls are.
+     */
+    private class StopArrivalBatch {
+        // Starts at one for the feed itself, released once all of it has been submitted
+        private final AtomicInteger sources = new AtomicInteger(1);
+        private final Map<String, VoltTable> byStop = new HashMap<String, VoltTable>();
+        private final FeedCompletion completion;
+
+        StopArrivalBatch(FeedCompletion completion)
+        {
+            this.completion = completion;
+        }
+
+        /**
+         * Count a call whose arrivals are to be collected, before it is made.
+         */
+        void add()
+        {
+            sources.incrementAndGet();
+        }
+
+        synchronized void collect(VoltTable arrivals)
+        {
+            while (arrivals.advanceRow()) {
+                String stopId = arrivals.getString(0);
+                VoltTable stop = byStop.get(stopId);
+                if (stop == null) {
+                    stop = arrivals.clone(0);
+                    byStop.put(stopId, stop);
+                }
+                stop.add(arrivals);
+            }
+        }
+
+        void done()
+        {
+            if (sources.decrementAndGet() > 0) {
+                return;
+            }
+            final Map<String, VoltTable> stops;
+            synchronized (this) {
+                if (byStop.isEmpty()) {
+                    return;
+                }
+                stops = new HashMap<String, VoltTable>(byStop);
+                byStop.clear();
+            }
+
+            // The calls can't be made from a callback, which runs on the client's
+            // network thread.
+            completion.add();
+            pendingArrivals.incrementAndGet();
+            stopArrivals.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Map.Entry<String, VoltTable> stop : stops.entrySet()) {
+                            updateStopArrivals(stop.getKey(), stop.getValue());
+                        }
+                    } finally {
+                        completion.complete();
+                        synchronized (pendingArrivals) {
+                            if (pendingArrivals.decrementAndGet() == 0) {
+                                pendingArrivals.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        private void updateStopArrivals(String stopId, VoltTable arrivals)
+        {
+            int count = arrivals.getRowCount();
+            String[] tripIds = new String[count];
+            String[] startDates = new String[count];
+            String[] routeIds = new String[count];
+            long[] startsInMicros = new long[count];
+            int[] stopSequences = new int[count];
+            long[] arrivalsInMicros = new long[count];
+            long[] delaysInMicros = new long[count];
+            long[] timesInMicros = new long[count];
+            for (int i = 0; arrivals.advanceRow(); i++) {
+                tripIds[i] = arrivals.getString(1);
+                startDates[i] = arrivals.getString(2);
+                routeIds[i] = arrivals.getString(3);
+                startsInMicros[i] = arrivals.getLong(4);
+                stopSequences[i] = (int) arrivals.getLong(5);
+                arrivalsInMicros[i] = arrivals.getLong(6);
+                delaysInMicros[i] = arrivals.getLong(7);
+                timesInMicros[i] = arrivals.getLong(8);
+            }
+
+            completion.add();
+            try {
+                call(new StopArrivalCallback(completion),
+                     "UpdateStopArrivals",
+                     stopId,
+                     tripIds,
+                     startDates,
+                     routeIds,
+                     startsInMicros,
+                     stopSequences,
+                     arrivalsInMicros,
+                     delaysInMicros,
+                     timesInMicros);
+            } catch (Exception e) {
+                completion.complete();
+                System.err.println(e);
             }
-        } else {
-            // Skip entries with no trip ID set
         }
     }
 
-    private static GtfsRealtime.FeedMessage parseFeed(String path) throws IOException
+    /**
+     * Reports a failed UpdateStopArrivals call. The arrivals are corrected by the trips'
+     * next updates.
+     */
+    private class StopArrivalCallback implements ProcedureCallback {
+        private final FeedCompletion completion;
+
+        StopArrivalCallback(FeedCompletion completion)
+        {
+            this.completion = completion;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response)
+        {
+            try {
+                if (response.getStatus() != ClientResponse.SUCCESS) {
+                    failures.incrementAndGet();
+                    System.err.println(response.getStatusString());
+                }
+            } finally {
+                if (outstanding != null) {
+                    outstanding.release();
+                }
+                completion.complete();
+            }
+        }
+    }
+
+    /**
+     * Read a whole file into the calling thread's file buffer. The returned buffer wraps
+     * that array from 0 to the file's length, and is only valid until the thread's next
+     * read. Entities are copied out as they are decoded, so nothing outlives it.
+     * Files ending in .gz are decompressed as they are read.
+     */
+    private ByteBuffer readFile(String path) throws IOException
     {
-        FileInputStream fin = new FileInputStream(path);
-        CodedInputStream in = CodedInputStream.newInstance(fin);
-        GtfsRealtime.FeedMessage.Builder b = GtfsRealtime.FeedMessage.newBuilder();
+        if (path.endsWith(".gz")) {
+            return readGzipFile(path);
+        }
 
-        b.mergeFrom(in, null);
-        fin.close();
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to load");
+            }
 
-        return b.build();
+            byte[] buffer = fileBuffer.get();
+            if (buffer == null || buffer.length < size) {
+                buffer = new byte[(int) size];
+                fileBuffer.set(buffer);
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new EOFException(path + " was truncated while loading");
+                }
+            }
+            data.flip();
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read up to buffer.length bytes from the start of a file, decompressing files
+     * ending in .gz.
+     *
+     * @return the number of bytes read
+     */
+    private static int readPrefix(String path, byte[] buffer) throws IOException
+    {
+        InputStream in = new FileInputStream(path);
+        try {
+            if (path.endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            int size = 0;
+            int n;
+            while (size < buffer.length && (n = in.read(buffer, size, buffer.length - size)) != -1) {
+                size += n;
+            }
+            return size;
+        } finally {
+            in.close();
+        }
+    }
+
+    private ByteBuffer readGzipFile(String path) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new FileInputStream(path));
+        try {
+            byte[] buffer = fileBuffer.get();
+            if (buffer == null) {
+                buffer = new byte[64 * 1024];
+            }
+
+            int size = 0;
+            int n;
+            while ((n = in.read(buffer, size, buffer.length - size)) != -1) {
+                size += n;
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            fileBuffer.set(buffer);
+            return ByteBuffer.wrap(buffer, 0, size);
+        } finally {
+            in.close();
+        }
     }
 }
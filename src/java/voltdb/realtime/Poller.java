@@ -0,0 +1,227 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import org.voltdb.client.Client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls realtime feeds over HTTP and loads them as they change, all over a
+ * single database connection. Each feed is fetched on its own schedule with
+ * conditional requests, so unchanged feeds cost a 304 and nothing else.
+ */
+public class Poller {
+    private final Loader loader;
+    // Where to archive the raw feeds, null to not keep them
+    private final File outputDir;
+    private final List<Feed> feeds = new ArrayList<Feed>();
+
+    public Poller(Loader loader, File outputDir)
+    {
+        this.loader = loader;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Usage: Poller hostname[:port][,hostname[:port]...] output_dir|none policy|default feed...
+     *
+     * The policy is the retention policy of the data loaded, see RetentionPolicy.
+     * Each feed is given as prefix:interval:url, e.g.
+     * mbta-vehicles:30:http://developer.mbta.com/lib/gtrtfs/Vehicles.pb
+     * polls the URL every 30 seconds and archives it as mbta-vehicles-*.pb
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Usage: Poller hostname[:port][,hostname[:port]...] output_dir|none " +
+                               "policy|default prefix:interval:url...");
+            System.exit(-1);
+        }
+
+        File outputDir = null;
+        // Where rows pruned from the database are archived
+        File expiredDir = null;
+        if (!args[1].equals("none")) {
+            outputDir = new File(args[1]);
+            outputDir.mkdirs();
+            expiredDir = new File(outputDir, "expired");
+            expiredDir.mkdirs();
+        }
+
+        RetentionPolicy policy = new RetentionPolicy();
+        if (!args[2].equals("default")) {
+            policy = RetentionPolicy.parse(args[2]);
+        }
+        System.out.println("Keeping " + policy);
+
+        final Client client = Loader.connect(args[0]);
+
+        Poller poller = new Poller(new Loader(client, Loader.DEFAULT_MAX_OUTSTANDING), outputDir);
+        for (int i = 3; i < args.length; i++) {
+            String[] spec = args[i].split(":", 3);
+            if (spec.length != 3) {
+                System.err.println("Invalid feed " + args[i]);
+                System.exit(-1);
+            }
+            poller.addFeed(spec[0], new URL(spec[2]), Integer.parseInt(spec[1]));
+        }
+
+        final ScheduledExecutorService scheduler = poller.start();
+        final ScheduledExecutorService pruner =
+            new Retention(client, policy, expiredDir).start(Retention.DEFAULT_INTERVAL);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                scheduler.shutdownNow();
+                pruner.shutdownNow();
+                try {
+                    client.drain();
+                    client.close();
+                } catch (Exception e) {
+                    System.err.println(e);
+                }
+            }
+        });
+    }
+
+    public void addFeed(String prefix, URL url, int intervalInSeconds)
+    {
+        feeds.add(new Feed(prefix, url, intervalInSeconds));
+    }
+
+    /**
+     * Start polling every feed on its own schedule, until the returned scheduler
+     * is shut down.
+     */
+    public ScheduledExecutorService start()
+    {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(feeds.size());
+        for (Feed feed : feeds) {
+            scheduler.scheduleWithFixedDelay(feed, 0, feed.interval, TimeUnit.SECONDS);
+        }
+        return scheduler;
+    }
+
+    private class Feed implements Runnable {
+        private final String prefix;
+        private final URL url;
+        private final int interval;
+        // Validators of the last successful fetch, sent back to make the request conditional
+        private long lastModified = 0;
+        private String etag = null;
+
+        Feed(String prefix, URL url, int interval)
+        {
+            this.prefix = prefix;
+            this.url = url;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run()
+        {
+            // An exception would cancel all future runs of this feed, so report and carry on.
+            try {
+                poll();
+            } catch (Throwable t) {
+                System.err.println(url + ": " + t);
+            }
+        }
+
+        private void poll() throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(interval * 1000);
+            conn.setReadTimeout(interval * 1000);
+            if (lastModified != 0) {
+                conn.setIfModifiedSince(lastModified);
+            }
+            if (etag != null) {
+                conn.setRequestProperty("If-None-Match", etag);
+            }
+
+            try {
+                int status = conn.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    System.err.println(url + ": " + status + " " + conn.getResponseMessage());
+                    return;
+                }
+
+                byte[] data = readFully(conn.getInputStream());
+                lastModified = conn.getLastModified();
+                etag = conn.getHeaderField("ETag");
+
+                String name = prefix + "-" +
+                    new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".pb";
+                if (outputDir != null) {
+                    archive(new File(outputDir, name), data);
+                }
+                loader.load(name, data);
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void archive(File file, byte[] data) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb.realtime;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ProcCallException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Deletes realtime data older than its table's retention window, so that the
+ * tables stay bounded while the insert procedures only ever insert. Each pass
+ * finds a chunk of trips with expired data and prunes them one single-partition
+ * transaction at a time, until no expired data is left.
+ *
+ * Pruned rows can be archived to gzip-compressed CSV files, one per table per
+ * pass, so that history survives outside of the database. Each chunk of trips is
+ * read, written and synced to the files before any of it is deleted, and only the
+ * rows that were written are deleted.
+ *
+ * Past stop arrivals are pruned the same way, stop by stop, and not archived since
+ * they are copies of the trip updates.
+ */
+public class Retention implements Runnable {
+    // How often to prune, in minutes
+    static final int DEFAULT_INTERVAL = 60;
+
+    // Trips, or stops, pruned per chunk
+    private static final int CHUNK_SIZE = 100;
+
+    private final Client client;
+    private final RetentionPolicy policy;
+    // Where to archive pruned rows, null to just delete them
+    private final File archiveDir;
+
+    public Retention(Client client, RetentionPolicy policy, File archiveDir)
+    {
+        this.client = client;
+        this.policy = policy;
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * Usage: Retention hostname[:port][,hostname[:port]...] [policy|default [interval_minutes [archive_dir]]]
+     *
+     * Prunes every interval_minutes, or just once if it is 0. See RetentionPolicy
+     * for the format of the policy.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 4) {
+            System.err.println("Usage: Retention hostname[:port][,hostname[:port]...] " +
+                               "[policy|default [interval_minutes [archive_dir]]]");
+            System.exit(-1);
+        }
+
+        RetentionPolicy policy = new RetentionPolicy();
+        if (args.length >= 2 && !args[1].equals("default")) {
+            policy = RetentionPolicy.parse(args[1]);
+        }
+        int interval = DEFAULT_INTERVAL;
+        if (args.length >= 3) {
+            interval = Integer.parseInt(args[2]);
+        }
+        File archiveDir = null;
+        if (args.length >= 4) {
+            archiveDir = new File(args[3]);
+            archiveDir.mkdirs();
+        }
+
+        System.out.println("Keeping " + policy);
+        final Client client = Loader.connect(args[0]);
+        Retention retention = new Retention(client, policy, archiveDir);
+        if (interval == 0) {
+            retention.run();
+            client.close();
+            return;
+        }
+
+        final ScheduledExecutorService scheduler = retention.start(interval);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                scheduler.shutdownNow();
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    System.err.println(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Prune every interval minutes, until the returned scheduler is shut down.
+     */
+    public ScheduledExecutorService start(int intervalInMinutes)
+    {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this, 0, intervalInMinutes, TimeUnit.MINUTES);
+        return scheduler;
+    }
+
+    @Override
+    public void run()
+    {
+        // An exception would cancel all future runs, so report and carry on.
+        try {
+            long deleted = prune();
+            if (deleted > 0) {
+                System.out.println("Pruned " + deleted + " expired rows");
+            }
+        } catch (Throwable t) {
+            System.err.println("Retention: " + t);
+        }
+    }
+
+    /**
+     * Prune all data that has expired as of now.
+     *
+     * @return the number of rows deleted
+     */
+    public long prune() throws IOException, ProcCallException
+    {
+        long now = System.currentTimeMillis();
+        return pruneHistory(policy.getExpirations(now)) +
+               pruneStopArrivals(policy.getExpiration(RetentionPolicy.STOP_ARRIVALS, now));
+    }
+
+    private long pruneHistory(long[] expirations) throws IOException, ProcCallException
+    {
+        String suffix = "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv.gz";
+        long deleted = 0;
+
+        while (true) {
+            VoltTable trips = client.callProcedure("FindExpiredTrips",
+                                                   expirations[0], expirations[1],
+                                                   expirations[2], expirations[3],
+                                                   CHUNK_SIZE).getResults()[0];
+            if (trips.getRowCount() == 0) {
+                break;
+            }
+
+            String[] tripIds = new String[trips.getRowCount()];
+            for (int i = 0; trips.advanceRow(); i++) {
+                tripIds[i] = trips.getString(0);
+            }
+            long[][] cutoffs = archiveDir != null ? archive(tripIds, expirations, suffix) : null;
+
+            long chunk = 0;
+            for (int i = 0; i < tripIds.length; i++) {
+                long[] cutoff = cutoffs != null ? cutoffs[i] : expirations;
+                chunk += client.callProcedure("PruneHistory", tripIds[i],
+                                              cutoff[0], cutoff[1], cutoff[2], cutoff[3])
+                               .getResults()[0].asScalarLong();
+            }
+            if (chunk == 0) {
+                // Nothing could be deleted, don't find the same trips again
+                break;
+            }
+            deleted += chunk;
+        }
+        return deleted;
+    }
+
+    private long pruneStopArrivals(long expiration) throws IOException, ProcCallException
+    {
+        long deleted = 0;
+        while (true) {
+            VoltTable arrivals = client.callProcedure("FindExpiredStopArrivals",
+                                                      expiration, CHUNK_SIZE).getResults()[0];
+            if (arrivals.getRowCount() == 0) {
+                break;
+            }
+
+            Set<String> stopIds = new LinkedHashSet<String>();
+            while (arrivals.advanceRow()) {
+                stopIds.add(arrivals.getString(0));
+            }
+            for (String stopId : stopIds) {
+                deleted += client.callProcedure("PruneStopArrivals", stopId, expiration)
+                                 .getResults()[0].asScalarLong();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Append the expired rows of the trips to the table archives, and sync them to disk.
+     *
+     * @return per trip, the expirations to delete with so that only the archived rows
+     * are deleted, i.e. none newer than the newest archived row of each table
+     */
+    private long[][] archive(String[] tripIds, long[] expirations, String suffix)
+    throws IOException, ProcCallException {
+        TableArchive[] archives = new TableArchive[RetentionPolicy.TABLES.length];
+        long[][] cutoffs = new long[tripIds.length][RetentionPolicy.TABLES.length];
+        try {
+            for (int i = 0; i < tripIds.length; i++) {
+                VoltTable[] expired = client.callProcedure("GetExpiredHistory", tripIds[i],
+                                                           expirations[0], expirations[1],
+                                                           expirations[2], expirations[3])
+                                            .getResults();
+                for (int t = 0; t < expired.length; t++) {
+                    // Nothing was read, so nothing may be deleted
+                    cutoffs[i][t] = Long.MIN_VALUE;
+                    if (expired[t].getRowCount() == 0) {
+                        continue;
+                    }
+                    if (archives[t] == null) {
+                        archives[t] = new TableArchive(
+                            new File(archiveDir, RetentionPolicy.TABLES[t] + suffix));
+                    }
+                    long newest = archives[t].write(expired[t]);
+                    cutoffs[i][t] = Math.min(expirations[t], newest + 1);
+                }
+            }
+        } finally {
+            for (TableArchive archive : archives) {
+                if (archive != null) {
+                    archive.close();
+                }
+            }
+        }
+        return cutoffs;
+    }
+
+    /**
+     * A gzip-compressed CSV file of the rows pruned from one table, with the column
+     * names as the first line. Each chunk is appended as a gzip member of its own,
+     * which gunzip and GZIPInputStream read as one stream.
+     */
+    private static class TableArchive {
+        private final FileOutputStream file;
+        private final GZIPOutputStream gzip;
+        private final Writer out;
+        private boolean hasHeader;
+
+        TableArchive(File path) throws IOException
+        {
+            hasHeader = path.length() > 0;
+            file = new FileOutputStream(path, true);
+            gzip = new GZIPOutputStream(file);
+            out = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"));
+        }
+
+        /**
+         * @return the newest time_usec of the rows
+         */
+        long write(VoltTable rows) throws IOException
+        {
+            long newest = Long.MIN_VALUE;
+            if (!hasHeader) {
+                for (int i = 0; i < rows.getColumnCount(); i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(rows.getColumnName(i));
+                }
+                out.write('\n');
+                hasHeader = true;
+            }
+
+            rows.resetRowPosition();
+            while (rows.advanceRow()) {
+                newest = Math.max(newest, rows.getLong("time_usec"));
+                for (int i = 0; i < rows.getColumnCount(); i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    Object value = rows.get(i, rows.getColumnType(i));
+                    if (!rows.wasNull()) {
+                        out.write(escape(value.toString()));
+                    }
+                }
+                out.write('\n');
+            }
+            return newest;
+        }
+
+        /**
+         * Finish the gzip member and make sure it is on disk.
+         */
+        void close() throws IOException
+        {
+            try {
+                out.flush();
+                gzip.finish();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+
+        private static String escape(String value)
+        {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+                return value;
+            }
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb.realtime;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How long realtime data is kept in the database, per table. Raw vehicle positions
+ * are only useful for hours, while effective stop times are kept for weeks to
+ * compare schedules against. Stop arrivals are kept for a while after they're due,
+ * rather than after the update they came from.
+ *
+ * A policy is given as a comma-separated list of table=duration, e.g.
+ * vehicle_positions=12h,effective_stop_times=4w, where the unit is one of h, d or
+ * w. Tables not listed keep their default window.
+ */
+public class RetentionPolicy {
+    // Tables pruned by PruneHistory, in the order of its parameters
+    static final String[] TABLES = {
+        "vehicle_positions", "trip_updates", "stop_time_updates", "effective_stop_times"
+    };
+
+    // Pruned by PruneStopArrivals, by arrival time
+    static final String STOP_ARRIVALS = "stop_arrivals";
+
+    private static final long HOUR = 3600l * 1000l;
+    private static final long DAY = 24l * HOUR;
+    private static final long WEEK = 7l * DAY;
+
+    // Windows in milliseconds, by table
+    private final Map<String, Long> windows = new LinkedHashMap<String, Long>();
+
+    public RetentionPolicy()
+    {
+        windows.put("vehicle_positions", 12l * HOUR);
+        windows.put("trip_updates", 1l * WEEK);
+        windows.put("stop_time_updates", 1l * WEEK);
+        windows.put("effective_stop_times", 4l * WEEK);
+        windows.put(STOP_ARRIVALS, 1l * HOUR);
+    }
+
+    public static RetentionPolicy parse(String spec)
+    {
+        RetentionPolicy policy = new RetentionPolicy();
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split("=");
+            if (pair.length != 2 || !policy.windows.containsKey(pair[0])) {
+                throw new IllegalArgumentException("Invalid retention window " + entry);
+            }
+            policy.windows.put(pair[0], parseDuration(pair[1]));
+        }
+        return policy;
+    }
+
+    private static long parseDuration(String duration)
+    {
+        long unit;
+        switch (duration.charAt(duration.length() - 1)) {
+        case 'h': unit = HOUR; break;
+        case 'd': unit = DAY; break;
+        case 'w': unit = WEEK; break;
+        default:
+            throw new IllegalArgumentException("Invalid duration " + duration);
+        }
+        return Long.parseLong(duration.substring(0, duration.length() - 1)) * unit;
+    }
+
+    /**
+     * @return the window of the table in milliseconds
+     */
+    public long getWindow(String table)
+    {
+        return windows.get(table);
+    }
+
+    /**
+     * The timestamps in microseconds before which each table's data expires, in the
+     * order of TABLES.
+     *
+     * @param now the current time in milliseconds
+     */
+    public long[] getExpirations(long now)
+    {
+        long[] expirations = new long[TABLES.length];
+        for (int i = 0; i < TABLES.length; i++) {
+            expirations[i] = getExpiration(TABLES[i], now);
+        }
+        return expirations;
+    }
+
+    /**
+     * The timestamp in microseconds before which the table's data expires.
+     *
+     * @param now the current time in milliseconds
+     */
+    public long getExpiration(String table, long now)
+    {
+        return (now - windows.get(table)) * 1000;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : windows.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(e.getKey()).append("=").append(e.getValue() / HOUR).append("h");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,351 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the fields of a VehiclePosition that position ingest needs straight out
+ * of an encoded FeedEntity, without building any GtfsRealtime objects. The
+ * fields are held in primitives that are overwritten by every read, and IDs
+ * are turned into Strings through a small cache, so reading a steady stream
+ * of vehicles allocates nothing. The entity bytes themselves are still a copy
+ * per entity, made by FeedDecoder.
+ *
+ * Instances are not thread-safe, use one per thread.
+ */
+public class VehiclePositionReader {
+    // Slots in the string cache, a power of two comfortably above the live trips of a feed
+    private static final int STRING_CACHE_SIZE = 1 << 12;
+
+    // Low bits of a tag holding the wire type
+    private static final int TAG_TYPE_MASK = 7;
+
+    private final String[] stringCache = new String[STRING_CACHE_SIZE];
+
+    private byte[] buf;
+    private int pos;
+
+    // Where the strings of the current entity are, as offsets into buf
+    private int entityIdOffset;
+    private int entityIdLength;
+    private int tripIdOffset;
+    private int tripIdLength;
+    private int startDateOffset;
+    private int startDateLength;
+
+    private boolean isVehicle;
+    private boolean hasTrip;
+    private int scheduleRelationship;
+    private float latitude;
+    private float longitude;
+    private int currentStopSequence;
+    private long timestamp;
+
+    /**
+     * Read an encoded FeedEntity, the whole array. Returns true if it is a vehicle
+     * position with a trip, i.e. something that can be loaded.
+     */
+    public boolean read(byte[] entity) throws InvalidProtocolBufferException
+    {
+        return read(entity, 0, entity.length);
+    }
+
+    /**
+     * Read an encoded FeedEntity of length bytes from offset in the array.
+     */
+    public boolean read(byte[] entity, int offset, int length) throws InvalidProtocolBufferException
+    {
+        buf = entity;
+        pos = offset;
+        entityIdLength = -1;
+        tripIdLength = -1;
+        startDateLength = 0;
+        isVehicle = false;
+        hasTrip = false;
+        scheduleRelationship = GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED_VALUE;
+        latitude = 0;
+        longitude = 0;
+        currentStopSequence = 0;
+        timestamp = 0;
+
+        int end = offset + length;
+        while (pos < end) {
+            int tag = (int) readVarint(end);
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case GtfsRealtime.FeedEntity.ID_FIELD_NUMBER:
+                entityIdLength = readLength(end);
+                entityIdOffset = pos;
+                pos += entityIdLength;
+                break;
+            case GtfsRealtime.FeedEntity.VEHICLE_FIELD_NUMBER:
+                isVehicle = true;
+                int vehicleLength = readLength(end);
+                readVehicle(pos + vehicleLength);
+                break;
+            default:
+                skipField(tag, end);
+            }
+        }
+        return isVehicle && hasTrip;
+    }
+
+    private void readVehicle(int end) throws InvalidProtocolBufferException
+    {
+        while (pos < end) {
+            int tag = (int) readVarint(end);
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case GtfsRealtime.VehiclePosition.TRIP_FIELD_NUMBER:
+                hasTrip = true;
+                int tripLength = readLength(end);
+                readTrip(pos + tripLength);
+                break;
+            case GtfsRealtime.VehiclePosition.POSITION_FIELD_NUMBER:
+                int positionLength = readLength(end);
+                readPosition(pos + positionLength);
+                break;
+            case GtfsRealtime.VehiclePosition.CURRENT_STOP_SEQUENCE_FIELD_NUMBER:
+                currentStopSequence = (int) readVarint(end);
+                break;
+            case GtfsRealtime.VehiclePosition.TIMESTAMP_FIELD_NUMBER:
+                timestamp = readVarint(end);
+                break;
+            default:
+                skipField(tag, end);
+            }
+        }
+    }
+
+    private void readTrip(int end) throws InvalidProtocolBufferException
+    {
+        while (pos < end) {
+            int tag = (int) readVarint(end);
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case GtfsRealtime.TripDescriptor.TRIP_ID_FIELD_NUMBER:
+                tripIdLength = readLength(end);
+                tripIdOffset = pos;
+                pos += tripIdLength;
+                break;
+            case GtfsRealtime.TripDescriptor.START_DATE_FIELD_NUMBER:
+                startDateLength = readLength(end);
+                startDateOffset = pos;
+                pos += startDateLength;
+                break;
+            case GtfsRealtime.TripDescriptor.SCHEDULE_RELATIONSHIP_FIELD_NUMBER:
+                scheduleRelationship = (int) readVarint(end);
+                break;
+            default:
+                skipField(tag, end);
+            }
+        }
+    }
+
+    private void readPosition(int end) throws InvalidProtocolBufferException
+    {
+        while (pos < end) {
+            int tag = (int) readVarint(end);
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case GtfsRealtime.Position.LATITUDE_FIELD_NUMBER:
+                latitude = Float.intBitsToFloat(readFixed32(end));
+                break;
+            case GtfsRealtime.Position.LONGITUDE_FIELD_NUMBER:
+                longitude = Float.intBitsToFloat(readFixed32(end));
+                break;
+            default:
+                skipField(tag, end);
+            }
+        }
+    }
+
+    public boolean isVehicle()
+    {
+        return isVehicle;
+    }
+
+    public boolean hasTrip()
+    {
+        return hasTrip;
+    }
+
+    /**
+     * The entity ID, or null if the entity has none.
+     */
+    public String getEntityId() throws InvalidProtocolBufferException
+    {
+        return entityIdLength < 0 ? null : string(entityIdOffset, entityIdLength);
+    }
+
+    public String getTripId() throws InvalidProtocolBufferException
+    {
+        return tripIdLength < 0 ? "" : string(tripIdOffset, tripIdLength);
+    }
+
+    public String getStartDate() throws InvalidProtocolBufferException
+    {
+        return string(startDateOffset, startDateLength);
+    }
+
+    public int getScheduleRelationship()
+    {
+        return scheduleRelationship;
+    }
+
+    public float getLatitude()
+    {
+        return latitude;
+    }
+
+    public float getLongitude()
+    {
+        return longitude;
+    }
+
+    public int getCurrentStopSequence()
+    {
+        return currentStopSequence;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Return the cached String for these bytes if it is the one last seen in its slot,
+     * otherwise decode it and cache it in place of the previous one.
+     */
+    private String string(int offset, int length) throws InvalidProtocolBufferException
+    {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+
+        String cached = stringCache[slot];
+        if (cached != null && matches(cached, offset, length)) {
+            return cached;
+        }
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buf[offset + i];
+        }
+        try {
+            cached = new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        stringCache[slot] = cached;
+        return cached;
+    }
+
+    /**
+     * Compare as ASCII, anything else is simply never found in the cache.
+     */
+    private boolean matches(String s, int offset, int length)
+    {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buf[offset + i];
+            if (b < 0 || s.charAt(i) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readLength(int end) throws InvalidProtocolBufferException
+    {
+        int length = (int) readVarint(end);
+        if (length < 0 || pos + length > end) {
+            throw truncated();
+        }
+        return length;
+    }
+
+    private long readVarint(int end) throws InvalidProtocolBufferException
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                throw truncated();
+            }
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new InvalidProtocolBufferException("Malformed varint");
+    }
+
+    private int readFixed32(int end) throws InvalidProtocolBufferException
+    {
+        if (pos + 4 > end) {
+            throw truncated();
+        }
+        int value = (buf[pos] & 0xff) |
+            (buf[pos + 1] & 0xff) << 8 |
+            (buf[pos + 2] & 0xff) << 16 |
+            (buf[pos + 3] & 0xff) << 24;
+        pos += 4;
+        return value;
+    }
+
+    private static InvalidProtocolBufferException truncated()
+    {
+        return new InvalidProtocolBufferException("Entity ended in the middle of a field");
+    }
+
+    private void skipField(int tag, int end) throws InvalidProtocolBufferException
+    {
+        switch (tag & TAG_TYPE_MASK) {
+        case WireFormat.WIRETYPE_VARINT:
+            readVarint(end);
+            break;
+        case WireFormat.WIRETYPE_FIXED64:
+            pos += 8;
+            break;
+        case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+            pos += readLength(end);
+            break;
+        case WireFormat.WIRETYPE_FIXED32:
+            pos += 4;
+            break;
+        default:
+            // Groups are deprecated and not used by GTFS-realtime
+            throw new InvalidProtocolBufferException("Unexpected wire type in tag " + tag);
+        }
+        if (pos > end) {
+            throw truncated();
+        }
+    }
+}
@@ -27,22 +27,25 @@ import org.voltdb.ProcInfo;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 @ProcInfo(
     partitionInfo = "trips.trip_id:0",
     singlePartition = true
 )
 public class EffectStopTimeUpdates extends VoltProcedure {
-    private static final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
 
-    /// Override a prior updates' effects.
-    public static final SQLStmt clearPriorSQL = new SQLStmt(
-        "DELETE FROM effective_stop_times WHERE start_date = ? AND trip_id = ?;");
+    /// A prior update's effects, to be diffed against.
+    public static final SQLStmt getPriorSQL = new SQLStmt(
+        "SELECT stop_sequence, arrival_usec, departure_usec " +
+        "FROM effective_stop_times WHERE trip_id = ? AND start_date = ? " +
+        "ORDER BY stop_sequence;");
 
 
     /// Collect input.
@@ -55,33 +58,67 @@ public class EffectStopTimeUpdates extends VoltProcedure {
         "ORDER BY 2, 1, 3, 4;");  //"ORDER BY 2;" is unique, but determinism detection isn't smart enough
 
 
-    /// Main effect.
+    /// Main effect, overriding the prior update's effects where they differ.
     public static final SQLStmt insertSQL =
         new SQLStmt("INSERT INTO effective_stop_times VALUES (?, ?, ?, ?, ?, ?, ?);");
+    public static final SQLStmt updateSQL =
+        new SQLStmt("UPDATE effective_stop_times SET time_usec = ?, arrival_usec = ?, departure_usec = ? " +
+                    "WHERE trip_id = ? AND start_date = ? AND stop_sequence = ?;");
+    public static final SQLStmt deleteSQL =
+        new SQLStmt("DELETE FROM effective_stop_times WHERE trip_id = ? AND start_date = ? AND stop_sequence = ?;");
 
     /**
+     * Index the rows of stop_sequence, arrival_usec and departure_usec by stop sequence.
+     */
+    static Map<Integer, long[]> byStopSequence(VoltTable effects)
+    {
+        Map<Integer, long[]> bySequence = new HashMap<Integer, long[]>();
+        while (effects.advanceRow()) {
+            bySequence.put((int) effects.getLong(0),
+                           new long[] {effects.getLong(1), effects.getLong(2)});
+        }
+        return bySequence;
+    }
+
+    /**
+     * Stops whose effective times are unchanged from the prior update keep their rows,
+     * and the time_usec of the update that last changed them.
      */
     public long run(String trip_id, String start_date, long ts) throws ParseException
     {
-        Date start = dateFormat.parse(start_date);
-        voltQueueSQL(clearPriorSQL, start_date, trip_id);
+        long start = ServiceDays.parse(start_date);
+        voltQueueSQL(getPriorSQL, trip_id, start_date);
         voltQueueSQL(workingSetSQL, start_date, ts, trip_id);
-        VoltTable workingSet = voltExecuteSQL()[0];
+        VoltTable[] result = voltExecuteSQL();
+        Map<Integer, long[]> priorEffects = byStopSequence(result[0]);
+        VoltTable workingSet = result[1];
         long delay = 0;
+        int queued = 0;
 
         while (workingSet.advanceRow()) {
+            if (queued >= MAX_BATCH_SIZE) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+
             long next_delay = workingSet.getLong(0);
             // Only update the delay if there was an update at this stop.
             if ( ! workingSet.wasNull()) {
                 delay = next_delay;
             }
 
+            // stu.delay st.stop_sequence st.arrival_usec st.departure_usec
+            int stop_sequence = (int) workingSet.getLong(1);
+            long[] prior = priorEffects.remove(stop_sequence);
             if (delay == 0) {
-                continue; // This part of the schedule effectively returned to normal.
+                // This part of the schedule effectively returned to normal.
+                if (prior != null) {
+                    voltQueueSQL(deleteSQL, trip_id, start_date, stop_sequence);
+                    queued++;
+                }
+                continue;
             }
             else {
-                // stu.delay st.stop_sequence st.arrival_usec st.departure_usec
-                int stop_sequence = (int) workingSet.getLong(1);
                 long arrival = workingSet.getLong(2);
                 long departure = workingSet.getLong(3);
                 arrival += delay;
@@ -91,11 +128,28 @@ public class EffectStopTimeUpdates extends VoltProcedure {
                 // departure at least did not exceed the next arrival (which may have a different delay),
                 // but, for now for simplicity, we currently just allow such contradictions.
                 departure += delay;
-                voltQueueSQL(insertSQL,
-                             trip_id, start_date, start, ts, arrival, departure, stop_sequence);
+                if (prior == null) {
+                    voltQueueSQL(insertSQL,
+                                 trip_id, start_date, start, ts, arrival, departure, stop_sequence);
+                    queued++;
+                }
+                else if (prior[0] != arrival || prior[1] != departure) {
+                    voltQueueSQL(updateSQL,
+                                 ts, arrival, departure, trip_id, start_date, stop_sequence);
+                    queued++;
+                }
+            }
+        }
+        // Effects on stops that have since left the base schedule
+        for (int stop_sequence : priorEffects.keySet()) {
+            if (queued >= MAX_BATCH_SIZE) {
+                voltExecuteSQL();
+                queued = 0;
             }
+            voltQueueSQL(deleteSQL, trip_id, start_date, stop_sequence);
+            queued++;
         }
-        voltExecuteSQL();
+        voltExecuteSQL(true);
         return 1;
     }
 }
@@ -23,10 +23,7 @@
 
 package voltdb.realtime.procedures;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-
-import java.util.Date;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -38,27 +35,13 @@ import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 
 import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 @ProcInfo(
     partitionInfo = "trips.trip_id:0",
     singlePartition = true
 )
 public class FindBetterTime extends VoltProcedure {
-    private static final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
-    private static final SimpleDateFormat weekdayFormat = CommonUtils.getWeekdayFormat();
-    private static final SimpleDateFormat timeFormat = CommonUtils.getTimeFormat();
-    private static final Map<String, Byte> dayMap = new HashMap<String, Byte>();
-
-    static {
-        dayMap.put("Mon", (byte)0);
-        dayMap.put("Tue", (byte)1);
-        dayMap.put("Wed", (byte)2);
-        dayMap.put("Thu", (byte)3);
-        dayMap.put("Fri", (byte)4);
-        dayMap.put("Sat", (byte)5);
-        dayMap.put("Sun", (byte)6);
-    }   
-
     public static final SQLStmt getScheduledStopTimesSQL =
         // Get the scheduled stops possibly repeated to reflect effective (rescheduled) times.
         new SQLStmt("SELECT est.start_usec + est.arrival_usec arrival_datetime, " +
@@ -74,41 +57,56 @@ public class FindBetterTime extends VoltProcedure {
                     "ORDER BY 1, 2, 3, 4 " + // Usefully, ORDER BY 1
                     ";");                    // Others have no effect but smell deterministic.
 
-    public static final SQLStmt getCalendarForTrip =
-        new SQLStmt("SELECT c.weekdays, c.start_usec, c.end_usec " +
-                    "FROM trips, calendar c " +
-                    "WHERE c.service_id = trips.service_id " +
-                    "AND trips.trip_id = ? " +
-                    "AND c.end_usec >= ? AND c.start_usec < ? " +
-                    ";");
+    public static final SQLStmt getTripServiceSQL =
+        new SQLStmt("SELECT service_id FROM trips WHERE trip_id = ?;");
+    public static final SQLStmt getCalendarVersionSQL =
+        new SQLStmt("SELECT version FROM calendar_version WHERE id = 0;");
+    public static final SQLStmt getServiceDaysSQL =
+        new SQLStmt("SELECT day_usec FROM service_days WHERE service_id = ? ORDER BY day_usec;");
 
-    public static final SQLStmt getFirstAddedCalendarDateForTrip =
-        new SQLStmt("SELECT c.date_usec " +
-                    "FROM trips, calendar_dates c " +
-                    "WHERE c.service_id = trips.service_id " +
-                    "AND trips.trip_id = ? " +
-                    "AND c.date_usec >= ? AND c.date_usec < ? " +
-                    "AND c.exception_type = 1 " +
-                    "ORDER BY date_usec " +
-                    "LIMIT 1 " +
-                    ";");
+    // The days each service runs on, cached by this site until the calendar changes.
+    // Every site computes the same bits from the same rows, so this is deterministic.
+    private final Map<String, ServiceCalendar> serviceCalendars = new HashMap<String, ServiceCalendar>();
+    private long calendarVersion = -1;
+
+    /**
+     * One bit per day a service runs, counting days from the first one.
+     */
+    private static class ServiceCalendar {
+        final int firstDay;
+        final BitSet days = new BitSet();
+
+        ServiceCalendar(VoltTable dayStarts)
+        {
+            int first = 0;
+            boolean empty = true;
+            while (dayStarts.advanceRow()) {
+                int day = ServiceDays.dayOf(dayStarts.getLong(0));
+                if (empty) {
+                    first = day;
+                    empty = false;
+                }
+                days.set(day - first);
+            }
+            firstDay = first;
+        }
+
+        /**
+         * The first day at or after the given one that the service runs on, or -1.
+         */
+        int nextDay(int day)
+        {
+            int bit = days.nextSetBit(Math.max(day - firstDay, 0));
+            return bit < 0 ? -1 : firstDay + bit;
+        }
+    }
 
-    public static final SQLStmt getDroppedCalendarDatesForTrip =
-        new SQLStmt("SELECT c.date_usec " +
-                    "FROM trips, calendar_dates c " +
-                    "WHERE c.service_id = trips.service_id " +
-                    "AND trips.trip_id = ? " +
-                    "AND c.date_usec >= ? AND c.date_usec < ? " +
-                    "AND c.exception_type = 2 " +
-                    "ORDER BY date_usec " +
-                    ";");
     /**
      * Given the trip_id and stop_sequence, and earliest and latest allowed arrival date/time,
      * expressed in epoch milliseconds, calculate the next arrival, its trip_id and trip start_date
      * based on the original schedule and the latest trip updates.
      */
     public VoltTable run(String trip_id, int stop_sequence, long earliest, long latest)
-        throws ParseException
     {
         // TODO: This query filters out the too-early rescheduled arrivals but not all of
         // the too-late arrivals.
@@ -222,121 +220,62 @@ public class FindBetterTime extends VoltProcedure {
         return schedule;
     }
 
-    private static long truncateToStartOfGtfsDay(long usec) throws ParseException
-    {
-        //// System.out.println("DEBUG truncateToStartOfGtfsDay usec " + usec);
-        // Scale to millis from micros for Date conversion.
-        Date pastMidnight = new Date(usec/1000);
-        //// System.out.println("DEBUG truncateToStartOfGtfsDay past midnight " + pastMidnight);
-        String day = dateFormat.format(pastMidnight);
-        //// System.out.println("DEBUG truncateToStartOfGtfsDay day " + day);
-        Date midnight = dateFormat.parse(day);
-        //// System.out.println("DEBUG truncateToStartOfGtfsDay midnight " + midnight);
-        //// System.out.println("DEBUG truncateToStartOfGtfsDay usec " + midnight.getTime()*1000);
-        // Scale back to micros for VoltDB nativeto millis from micros for Date conversion.
-        return midnight.getTime()*1000;
-    }
-
     private boolean getTripStartDateAtOrAfter(VoltTable schedule,
                                               String trip_id,
                                               long earliest_start,
                                               long scheduled_arrival,
                                               long too_late_to_start,
                                               Set<Long> forbiddenTripStarts)
-    throws ParseException
     {
         //// System.out.println("DEBUG getTripStartDateAtOrAfter(" + trip_id + "," + earliest_start +
         ////                    "," + scheduled_arrival + "," + too_late_to_start + "," +
         ////                    forbiddenTripStarts.size() + ")");
-        voltQueueSQL(getCalendarForTrip, trip_id, earliest_start, too_late_to_start);
-        voltQueueSQL(getFirstAddedCalendarDateForTrip, trip_id, earliest_start, too_late_to_start);
-        voltQueueSQL(getDroppedCalendarDatesForTrip, trip_id, earliest_start, too_late_to_start);
-        VoltTable[] results = voltExecuteSQL();
-        VoltTable calendar = results[0];
-        VoltTable adds = results[1];
-        if (calendar.getRowCount() == 0 && adds.getRowCount() == 0) {
-            // This trip is not in service over the period of interest.
+        ServiceCalendar calendar = getServiceCalendar(trip_id);
+        if (calendar == null) {
             return false;
         }
-        Set<Long> drops = CommonUtils.createSetFromTableColumn(results[2], 0);
 
-        // Along with dropped start dates, also ignore valid calendar start dates that
-        // were considered already in their updated form.
-        drops.addAll(forbiddenTripStarts);
-
-        long first_added = Long.MAX_VALUE;
-        if (adds.getRowCount() > 0) {
-            adds.advanceRow();
-            first_added = adds.getLong(0);
-            too_late_to_start = first_added; // This beats later calendar dates.
-            adds = null;
-        }
-
-        long cal_start = Long.MAX_VALUE;
-        long cal_stop = 0;
-        byte weekdays = 0;
-        if (calendar.getRowCount() != 0) {
-            calendar.advanceRow();
-            cal_start = calendar.getLong(1);
-            if (cal_start >= first_added) {
-                cal_start = Long.MAX_VALUE; // The added date beats later calendar dates.
-            } else {
-                weekdays = (byte)calendar.getLong(0);
-                cal_stop = calendar.getLong(2)+1;
-                if (cal_stop < too_late_to_start) {
-                     // The calendar scan stops at its end, before any added date.
-                    too_late_to_start = cal_stop;
-                }
+        int day = calendar.nextDay(ServiceDays.dayOf(earliest_start - 1) + 1);
+        while (day >= 0) {
+            long start_date = ServiceDays.startOf(day);
+            if (start_date >= too_late_to_start) {
+                break;
             }
-        }
-
-        if (cal_start != Long.MAX_VALUE) {
-            byte weekday_index = weekdayOfDate(cal_start);
-            while (cal_start < too_late_to_start) {
-                if (cal_start >= earliest_start &&
-                    weekdayIsOk(weekday_index, weekdays) &&
-                    ! drops.contains(cal_start)) {
-                    //// System.out.println("DEBUG getTripStartDateAtOrAfter(...) returned " +
-                    ////                    (cal_start + scheduled_arrival) + "," + cal_start);
-                    schedule.addRow(cal_start + scheduled_arrival, cal_start);
-                    return true;
-                }
-                // Add 35 hours (semi-arbitrarily) in micros to one midnight value
-                // and truncate down to (the next) midnight to advance the day.
-                //// System.out.println("DEBUG getTripStartDateAtOrAfter(...) skipped " +
-                ////                    (cal_start + scheduled_arrival) + "," + cal_start);
-                //// if (truncateToStartOfGtfsDay(cal_start+((long)35)*60*60*1000*1000) <= cal_start) {
-                ////     System.out.println("DEBUG getTripStartDateAtOrAfter(...) ERROR: stalled at " + cal_start +
-                ////                        " via " + (cal_start + ((long)35)*60*60*1000*1000));
-                ////     return false;
-                //// }
-                cal_start = truncateToStartOfGtfsDay(cal_start+((long)35)*60*60*1000*1000);
-                ++weekday_index;
-                weekday_index %= 7;
+            // Ignore start dates that were considered already in their updated form.
+            if ( ! forbiddenTripStarts.contains(start_date)) {
+                schedule.addRow(start_date + scheduled_arrival, start_date);
+                return true;
             }
+            day = calendar.nextDay(day + 1);
         }
-        if (first_added != Long.MAX_VALUE) {
-            //// System.out.println("DEBUG getTripStartDateAtOrAfter(...) returned added " +
-            //// (first_added + scheduled_arrival) + "," + first_added);
-            schedule.addRow(first_added + scheduled_arrival, first_added);
-            return true;
-        }
+        // This trip is not in service over the period of interest.
         return false;
     }
 
-    private static byte weekdayOfDate(long cal_start)
+    /**
+     * The days the trip's service runs on, or null for an unknown trip.
+     */
+    private ServiceCalendar getServiceCalendar(String trip_id)
     {
-        // Scale to millis from micros for Date conversion.
-        // Incrementing twelve hours of millis into the day (presumably from around midnight),
-        // so it doesn't matter whether the formatter is simple or noon-based. Very superstitious.
-        Date safelyNoonish = new Date(cal_start/1000 + ((long)12)*60*60*1000);
-        String formattedWeekday = weekdayFormat.format(safelyNoonish);
-        return dayMap.get(formattedWeekday);
-    }
+        voltQueueSQL(getTripServiceSQL, trip_id);
+        voltQueueSQL(getCalendarVersionSQL);
+        VoltTable[] results = voltExecuteSQL();
+        if ( ! results[0].advanceRow()) {
+            return null;
+        }
+        String service_id = results[0].getString(0);
+        long version = results[1].advanceRow() ? results[1].getLong(0) : 0;
+        if (version != calendarVersion) {
+            serviceCalendars.clear();
+            calendarVersion = version;
+        }
 
-    private static boolean weekdayIsOk(byte weekday_index, byte weekdays)
-    {
-        byte mask = (byte) (1 << weekday_index);
-        return (weekdays & mask) == mask;
+        ServiceCalendar calendar = serviceCalendars.get(service_id);
+        if (calendar == null) {
+            voltQueueSQL(getServiceDaysSQL, service_id);
+            calendar = new ServiceCalendar(voltExecuteSQL()[0]);
+            serviceCalendars.put(service_id, calendar);
+        }
+        return calendar;
     }
 }
@@ -0,0 +1,89 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import java.util.TreeSet;
+
+/**
+ * Lists trips that have realtime data older than its table's expiration, in trip_id order
+ * and at most limit of them, to be pruned one by one with PruneHistory. This is a
+ * read-only multi-partition transaction, all deletes happen in single-partition
+ * transactions. It reads at most limit of the oldest rows of each table, through
+ * the tables' time_usec indexes, so it stays short however much history there is.
+ */
+@ProcInfo(
+    singlePartition = false
+)
+public class FindExpiredTrips extends VoltProcedure {
+    public static final SQLStmt findPositionsSQL =
+        new SQLStmt("SELECT trip_id FROM vehicle_positions WHERE time_usec < ? " +
+                    "ORDER BY time_usec, trip_id LIMIT ?;");
+    public static final SQLStmt findUpdatesSQL =
+        new SQLStmt("SELECT trip_id FROM trip_updates WHERE time_usec < ? " +
+                    "ORDER BY time_usec, trip_id LIMIT ?;");
+    public static final SQLStmt findStopTimeUpdatesSQL =
+        new SQLStmt("SELECT trip_id FROM stop_time_updates WHERE time_usec < ? " +
+                    "ORDER BY time_usec, trip_id LIMIT ?;");
+    public static final SQLStmt findEffectsSQL =
+        new SQLStmt("SELECT trip_id FROM effective_stop_times WHERE time_usec < ? " +
+                    "ORDER BY time_usec, trip_id LIMIT ?;");
+
+    /**
+     * The expirations are timestamps in microseconds before which each table's data
+     * expires.
+     *
+     * @param limit the maximum number of trips to return
+     */
+    public VoltTable run(long positions_expiration, long updates_expiration,
+                         long stop_time_updates_expiration, long effects_expiration,
+                         int limit)
+    {
+        voltQueueSQL(findPositionsSQL, positions_expiration, limit);
+        voltQueueSQL(findUpdatesSQL, updates_expiration, limit);
+        voltQueueSQL(findStopTimeUpdatesSQL, stop_time_updates_expiration, limit);
+        voltQueueSQL(findEffectsSQL, effects_expiration, limit);
+        VoltTable[] result = voltExecuteSQL(true);
+
+        TreeSet<String> trips = new TreeSet<String>();
+        for (VoltTable table : result) {
+            while (table.advanceRow()) {
+                trips.add(table.getString(0));
+            }
+        }
+
+        VoltTable expired = new VoltTable(new VoltTable.ColumnInfo("trip_id", VoltType.STRING));
+        for (String trip_id : trips) {
+            if (expired.getRowCount() >= limit) {
+                break;
+            }
+            expired.addRow(trip_id);
+        }
+        return expired;
+    }
+}
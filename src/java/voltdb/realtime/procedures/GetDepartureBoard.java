@@ -0,0 +1,197 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import voltdb.ServiceDays;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The next arrivals at a stop across all trips, optionally of a single route, with
+ * the latest trip updates applied. Replaces a FindTrips call followed by one
+ * FindBetterTime call per trip.
+ *
+ * A trip's scheduled arrival counts for each of yesterday, today and tomorrow that
+ * its service runs, since GTFS times can run past midnight. Where a trip update
+ * has rescheduled the arrival for a start date, the effective arrival is used
+ * instead.
+ */
+@ProcInfo(
+    singlePartition = false
+)
+public class GetDepartureBoard extends VoltProcedure {
+    private static final long USEC_PER_DAY = 24l * 3600l * 1000l * 1000l;
+
+    public static final SQLStmt getScheduledSQL =
+        new SQLStmt("SELECT st.trip_id, st.stop_id, st.arrival_usec, t.service_id, t.route_id, " +
+                    "st.stop_sequence " +
+                    "FROM stops s, stop_times st, trips t " +
+                    "WHERE st.stop_id = s.stop_id " +
+                    "AND t.trip_id = st.trip_id " +
+                    "AND s.stop_name = ? " +
+                    ";");
+
+    public static final SQLStmt getEffectiveSQL =
+        new SQLStmt("SELECT est.trip_id, est.start_usec, est.arrival_usec, " +
+                    "est.arrival_usec - st.arrival_usec delay, est.stop_sequence " +
+                    "FROM stops s, stop_times st, effective_stop_times est " +
+                    "WHERE st.stop_id = s.stop_id " +
+                    "AND est.trip_id = st.trip_id AND est.stop_sequence = st.stop_sequence " +
+                    "AND s.stop_name = ? " +
+                    "AND est.start_usec >= ? AND est.start_usec <= ? " +
+                    ";");
+
+    public static final SQLStmt getServiceDaysSQL =
+        new SQLStmt("SELECT service_id, day_usec FROM service_days " +
+                    "WHERE day_usec >= ? AND day_usec <= ?;");
+
+    private static class Arrival {
+        final String trip_id;
+        final int day;
+        final String route_id;
+        final String stop_id;
+        final long arrival;
+        final long delay;
+
+        Arrival(String trip_id, int day, String route_id, String stop_id, long arrival, long delay)
+        {
+            this.trip_id = trip_id;
+            this.day = day;
+            this.route_id = route_id;
+            this.stop_id = stop_id;
+            this.arrival = arrival;
+            this.delay = delay;
+        }
+    }
+
+    private static final Comparator<Arrival> byArrival = new Comparator<Arrival>() {
+        @Override
+        public int compare(Arrival a, Arrival b)
+        {
+            if (a.arrival != b.arrival) {
+                return a.arrival < b.arrival ? -1 : 1;
+            }
+            return a.trip_id.compareTo(b.trip_id);
+        }
+    };
+
+    /**
+     * @param route_id the route to show, or an empty string for all routes
+     * @param now the time in microseconds from which to list arrivals
+     * @param limit the maximum number of arrivals to return
+     */
+    public VoltTable run(String stop_name, String route_id, long now, int limit)
+    {
+        int today = ServiceDays.dayOf(now);
+        long first = ServiceDays.startOf(today - 1);
+        long last = ServiceDays.startOf(today + 1);
+
+        voltQueueSQL(getScheduledSQL, stop_name);
+        voltQueueSQL(getEffectiveSQL, stop_name, first, last);
+        voltQueueSQL(getServiceDaysSQL, first, last);
+        VoltTable[] results = voltExecuteSQL(true);
+
+        // Services running on each of the three days, by service_id
+        Map<String, Set<Long>> running = new HashMap<String, Set<Long>>();
+        VoltTable days = results[2];
+        while (days.advanceRow()) {
+            String service_id = days.getString(0);
+            Set<Long> starts = running.get(service_id);
+            if (starts == null) {
+                starts = new HashSet<Long>();
+                running.put(service_id, starts);
+            }
+            starts.add(days.getLong(1));
+        }
+
+        // Rescheduled arrivals by trip, start date and stop sequence, since a trip may
+        // call at stops of the same name more than once
+        Map<String, Long> effective = new HashMap<String, Long>();
+        Map<String, Long> delays = new HashMap<String, Long>();
+        VoltTable updates = results[1];
+        while (updates.advanceRow()) {
+            String key = updates.getString(0) + ":" + updates.getLong(1) + ":" + updates.getLong(4);
+            effective.put(key, updates.getLong(1) + updates.getLong(2));
+            delays.put(key, updates.getLong(3));
+        }
+
+        List<Arrival> arrivals = new ArrayList<Arrival>();
+        VoltTable scheduled = results[0];
+        while (scheduled.advanceRow()) {
+            String trip_route = scheduled.getString(4);
+            if (route_id.length() > 0 && !route_id.equals(trip_route)) {
+                continue;
+            }
+            Set<Long> starts = running.get(scheduled.getString(3));
+            if (starts == null) {
+                continue;
+            }
+            String trip_id = scheduled.getString(0);
+            long scheduled_arrival = scheduled.getLong(2);
+            long stop_sequence = scheduled.getLong(5);
+            for (int day = today - 1; day <= today + 1; day++) {
+                long start = ServiceDays.startOf(day);
+                String key = trip_id + ":" + start + ":" + stop_sequence;
+                Long arrival = effective.get(key);
+                long delay = 0;
+                if (arrival != null) {
+                    delay = delays.get(key);
+                } else if (starts.contains(start)) {
+                    arrival = start + scheduled_arrival;
+                } else {
+                    continue;
+                }
+                // Nothing more than a day ahead, there is a closer arrival of the same trip
+                if (arrival >= now && arrival < now + USEC_PER_DAY) {
+                    arrivals.add(new Arrival(trip_id, day, trip_route, scheduled.getString(1),
+                                             arrival, delay));
+                }
+            }
+        }
+        Collections.sort(arrivals, byArrival);
+
+        VoltTable board = new VoltTable(new VoltTable.ColumnInfo("trip_id", VoltType.STRING),
+                                         new VoltTable.ColumnInfo("start_date", VoltType.STRING),
+                                         new VoltTable.ColumnInfo("route_id", VoltType.STRING),
+                                         new VoltTable.ColumnInfo("stop_id", VoltType.STRING),
+                                         new VoltTable.ColumnInfo("arrival_usec", VoltType.BIGINT),
+                                         new VoltTable.ColumnInfo("delay", VoltType.BIGINT));
+        for (Arrival arrival : arrivals.subList(0, Math.min(limit, arrivals.size()))) {
+            board.addRow(arrival.trip_id, ServiceDays.format(arrival.day), arrival.route_id,
+                         arrival.stop_id, arrival.arrival, arrival.delay);
+        }
+        return board;
+    }
+}
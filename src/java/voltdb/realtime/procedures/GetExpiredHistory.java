@@ -0,0 +1,65 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Reads the realtime data of one trip that is older than its table's expiration, for
+ * the retention job to archive before it deletes the same rows with PruneHistory.
+ */
+@ProcInfo(
+    partitionInfo = "vehicle_positions.trip_id:0",
+    singlePartition = true
+)
+public class GetExpiredHistory extends VoltProcedure {
+    public static final SQLStmt getPositionsSQL =
+        new SQLStmt("SELECT * FROM vehicle_positions WHERE trip_id = ? AND time_usec < ?;");
+    public static final SQLStmt getUpdatesSQL =
+        new SQLStmt("SELECT * FROM trip_updates WHERE trip_id = ? AND time_usec < ?;");
+    public static final SQLStmt getStopTimeUpdatesSQL =
+        new SQLStmt("SELECT * FROM stop_time_updates WHERE trip_id = ? AND time_usec < ?;");
+    public static final SQLStmt getEffectsSQL =
+        new SQLStmt("SELECT * FROM effective_stop_times WHERE trip_id = ? AND time_usec < ?;");
+
+    /**
+     * The expirations are timestamps in microseconds before which each table's data
+     * expires.
+     *
+     * @return the expired rows of vehicle_positions, trip_updates, stop_time_updates
+     * and effective_stop_times, in that order
+     */
+    public VoltTable[] run(String trip_id, long positions_expiration, long updates_expiration,
+                           long stop_time_updates_expiration, long effects_expiration)
+    {
+        voltQueueSQL(getPositionsSQL, trip_id, positions_expiration);
+        voltQueueSQL(getUpdatesSQL, trip_id, updates_expiration);
+        voltQueueSQL(getStopTimeUpdatesSQL, trip_id, stop_time_updates_expiration);
+        voltQueueSQL(getEffectsSQL, trip_id, effects_expiration);
+        return voltExecuteSQL(true);
+    }
+}
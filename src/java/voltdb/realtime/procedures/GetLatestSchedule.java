@@ -27,8 +27,10 @@ import org.voltdb.ProcInfo;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import org.voltdb.VoltType;
+import voltdb.ServiceDays;
 
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -38,37 +40,85 @@ import java.util.Map;
 )
 public class GetLatestSchedule extends VoltProcedure {
     public final SQLStmt getStopTimesSQL =
-        new SQLStmt("SELECT stop_sequence, stop_name, arrival_time " +
+        new SQLStmt("SELECT t.stop_sequence, s.stop_name, t.arrival_usec " +
                     "FROM stop_times as t, stops as s " +
-                    "WHERE trip_id = ? AND t.stop_id = s.stop_id " +
-                    "ORDER BY arrival_time;");
+                    "WHERE t.trip_id = ? AND t.stop_id = s.stop_id " +
+                    "ORDER BY t.stop_sequence;");
+    public final SQLStmt getEffectsSQL =
+        new SQLStmt("SELECT stop_sequence, arrival_usec " +
+                    "FROM effective_stop_times WHERE trip_id = ? AND start_date = ? " +
+                    "ORDER BY stop_sequence;");
+    public final SQLStmt getUpdateSQL =
+        new SQLStmt("SELECT time_usec FROM trip_updates WHERE trip_id = ? AND start_date = ?;");
+    public final SQLStmt getPositionSQL =
+        new SQLStmt("SELECT stop_sequence, time_usec " +
+                    "FROM current_vehicle_positions WHERE trip_id = ? AND start_date = ?;");
 
     /**
-     * Given the trip_id, calculate the latest schedule based on the original
-     * schedule, the latest trip updates and the latest vehicle position.
+     * Given the trip_id and start date, calculate the latest schedule based on the
+     * original schedule, the latest trip updates and the latest vehicle position.
+     *
+     * Returns one row per stop of stop_sequence, stop_name and the scheduled, effective
+     * and predicted arrivals, all in microseconds. The effective arrivals are the
+     * scheduled ones plus the delays of the latest trip update and any lateness
+     * InsertPosition has inferred from vehicle positions since. The prediction also
+     * holds back the effective arrivals from the vehicle's current stop onwards by
+     * however late it is for that stop, when its position is newer than the trip
+     * update; that adds nothing once InsertPosition has held the trip back for the
+     * same position, which only happens for lateness of INFERENCE_THRESHOLD or more.
+     * Returns null if there is no such trip.
      */
-    public VoltTable run(String trip_id) {
-        /*
-         * get stop_times in arrival times order
-         * get trip updates and apply any changes
-         */
+    public VoltTable run(String trip_id, String start_date) throws ParseException {
+        long start = ServiceDays.parse(start_date);
+        voltQueueSQL(getStopTimesSQL, trip_id);           // -> result[0]
+        voltQueueSQL(getEffectsSQL, trip_id, start_date); // -> result[1]
+        voltQueueSQL(getUpdateSQL, trip_id, start_date);  // -> result[2]
+        voltQueueSQL(getPositionSQL, trip_id, start_date);// -> result[3]
+        VoltTable[] result = voltExecuteSQL(true);
 
-        voltQueueSQL(getStopTimesSQL, trip_id);
-        VoltTable[] result = voltExecuteSQL();
-
-        if (result[0].getRowCount() == 0) {
+        VoltTable stopTimes = result[0];
+        if (stopTimes.getRowCount() == 0) {
             // There's no such trip
             return null;
         }
 
-        VoltTable schedule = CommonUtils.createTableFromTemplate(result[0]);
+        Map<Integer, Long> effectiveArrivals = new HashMap<Integer, Long>();
+        while (result[1].advanceRow()) {
+            effectiveArrivals.put((int) result[1].getLong(0), result[1].getLong(1));
+        }
+
+        // The vehicle's stop and how far behind the effective schedule it is there
+        int positionSequence = Integer.MAX_VALUE;
+        long positionTime = 0;
+        if (result[3].advanceRow()) {
+            long updateTime = result[2].advanceRow() ? result[2].getLong(0) : Long.MIN_VALUE;
+            if (result[3].getLong(1) > updateTime) {
+                positionSequence = (int) result[3].getLong(0);
+                positionTime = result[3].getLong(1);
+            }
+        }
+        long lateness = 0;
 
-        long currentDelay = 0;
-        while (result[0].advanceRow()) {
-            int stop_sequence = (int) result[0].getLong("stop_sequence");
+        VoltTable schedule = new VoltTable(new VoltTable.ColumnInfo("stop_sequence", VoltType.INTEGER),
+                                           new VoltTable.ColumnInfo("stop_name", VoltType.STRING),
+                                           new VoltTable.ColumnInfo("scheduled_usec", VoltType.BIGINT),
+                                           new VoltTable.ColumnInfo("effective_usec", VoltType.BIGINT),
+                                           new VoltTable.ColumnInfo("predicted_usec", VoltType.BIGINT));
+        while (stopTimes.advanceRow()) {
+            int stop_sequence = (int) stopTimes.getLong(0);
+            long scheduled = start + stopTimes.getLong(2);
+            Long effective = effectiveArrivals.get(stop_sequence);
+            long effectiveArrival = effective == null ? scheduled : start + effective;
+            if (stop_sequence == positionSequence) {
+                // Not there yet, or just there, at the time of the position
+                lateness = Math.max(0, positionTime - effectiveArrival);
+            }
             schedule.addRow(stop_sequence,
-                            result[0].getString("stop_name"),
-                            result[0].getTimestampAsLong("arrival_time") + currentDelay);
+                            stopTimes.getString(1),
+                            scheduled,
+                            effectiveArrival,
+                            stop_sequence >= positionSequence ? effectiveArrival + lateness
+                                                              : effectiveArrival);
         }
 
         return schedule;
@@ -0,0 +1,125 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import voltdb.GeoGrid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The k stops nearest to a point, with their distance in meters, nearest first.
+ *
+ * Searches a square of grid cells around the point's cell, doubling its radius until
+ * it holds k stops that are all nearer than the square's edge. Gives up with the
+ * nearest stops found once the square spans more rows than fit in a batch, about
+ * a degree from the point.
+ */
+@ProcInfo(
+    singlePartition = false
+)
+public class GetNearestStops extends VoltProcedure {
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
+
+    public static final SQLStmt getCellsSQL =
+        new SQLStmt("SELECT stop_id, stop_name, stop_lat, stop_lon FROM stops " +
+                    "WHERE grid_cell >= ? AND grid_cell <= ? " +
+                    "ORDER BY stop_id;");
+
+    private static class Candidate {
+        final String stop_id;
+        final String stop_name;
+        final double lat;
+        final double lon;
+        final double distance;
+
+        Candidate(String stop_id, String stop_name, double lat, double lon, double distance)
+        {
+            this.stop_id = stop_id;
+            this.stop_name = stop_name;
+            this.lat = lat;
+            this.lon = lon;
+            this.distance = distance;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_DISTANCE = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b)
+        {
+            int order = Double.compare(a.distance, b.distance);
+            return order != 0 ? order : a.stop_id.compareTo(b.stop_id);
+        }
+    };
+
+    public VoltTable run(double lat, double lon, int k)
+    {
+        int row = GeoGrid.rowOf(lat);
+        int column = GeoGrid.columnOf(lon);
+        double cellSize = GeoGrid.cellSize(lat);
+
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (int radius = 1; ; radius *= 2) {
+            for (int r = row - radius; r <= row + radius; r++) {
+                voltQueueSQL(getCellsSQL,
+                             GeoGrid.cell(r, column - radius), GeoGrid.cell(r, column + radius));
+            }
+            candidates.clear();
+            for (VoltTable cells : voltExecuteSQL()) {
+                while (cells.advanceRow()) {
+                    double stopLat = cells.getDouble(2);
+                    double stopLon = cells.getDouble(3);
+                    candidates.add(new Candidate(cells.getString(0), cells.getString(1),
+                                                 stopLat, stopLon,
+                                                 GeoGrid.distance(lat, lon, stopLat, stopLon)));
+                }
+            }
+            Collections.sort(candidates, BY_DISTANCE);
+
+            if (k <= 0 ||
+                (candidates.size() >= k && candidates.get(k - 1).distance <= radius * cellSize) ||
+                4 * radius + 1 > MAX_BATCH_SIZE) {
+                break;
+            }
+        }
+
+        VoltTable stops = new VoltTable(new VoltTable.ColumnInfo("stop_id", VoltType.STRING),
+                                        new VoltTable.ColumnInfo("stop_name", VoltType.STRING),
+                                        new VoltTable.ColumnInfo("stop_lat", VoltType.FLOAT),
+                                        new VoltTable.ColumnInfo("stop_lon", VoltType.FLOAT),
+                                        new VoltTable.ColumnInfo("distance", VoltType.FLOAT));
+        for (Candidate stop : candidates.subList(0, Math.max(0, Math.min(k, candidates.size())))) {
+            stops.addRow(stop.stop_id, stop.stop_name, stop.lat, stop.lon, stop.distance);
+        }
+        return stops;
+    }
+}
@@ -0,0 +1,90 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import voltdb.GeoGrid;
+
+/**
+ * The stops within a bounding box, e.g. a map viewport, looked up by grid cell. Each
+ * row of grid cells the box spans is one range scan of the stops' cell index. A box
+ * whose west is east of its east crosses the antimeridian, and is looked up as the
+ * two boxes on either side of it.
+ */
+@ProcInfo(
+    singlePartition = false
+)
+public class GetStopsInBox extends VoltProcedure {
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
+
+    public static final SQLStmt getCellsSQL =
+        new SQLStmt("SELECT stop_id, stop_name, stop_lat, stop_lon FROM stops " +
+                    "WHERE grid_cell >= ? AND grid_cell <= ? " +
+                    "AND stop_lat >= ? AND stop_lat <= ? AND stop_lon >= ? AND stop_lon <= ? " +
+                    "ORDER BY stop_id;");
+
+    /// For boxes spanning more grid rows than fit in a batch, which cover most stops anyway.
+    public static final SQLStmt getBoxSQL =
+        new SQLStmt("SELECT stop_id, stop_name, stop_lat, stop_lon FROM stops " +
+                    "WHERE stop_lat >= ? AND stop_lat <= ? AND stop_lon >= ? AND stop_lon <= ? " +
+                    "ORDER BY stop_id;");
+
+    public VoltTable run(double south, double west, double north, double east)
+    {
+        double[][] spans = GeoGrid.spans(west, east);
+        int firstRow = GeoGrid.rowOf(south);
+        int lastRow = GeoGrid.rowOf(north);
+        if ((lastRow - firstRow + 1) * spans.length > MAX_BATCH_SIZE) {
+            for (double[] span : spans) {
+                voltQueueSQL(getBoxSQL, south, north, span[0], span[1]);
+            }
+        } else {
+            for (double[] span : spans) {
+                int firstColumn = GeoGrid.columnOf(span[0]);
+                int lastColumn = GeoGrid.columnOf(span[1]);
+                for (int row = firstRow; row <= lastRow; row++) {
+                    voltQueueSQL(getCellsSQL,
+                                 GeoGrid.cell(row, firstColumn), GeoGrid.cell(row, lastColumn),
+                                 south, north, span[0], span[1]);
+                }
+            }
+        }
+        VoltTable[] rows = voltExecuteSQL(true);
+        if (rows.length == 1) {
+            return rows[0];
+        }
+
+        VoltTable stops = rows[0].clone(0);
+        for (VoltTable row : rows) {
+            while (row.advanceRow()) {
+                stops.add(row);
+            }
+        }
+        return stops;
+    }
+}
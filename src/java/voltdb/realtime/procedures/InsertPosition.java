@@ -27,71 +27,323 @@ import org.voltdb.ProcInfo;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import voltdb.GeoGrid;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @ProcInfo(
     partitionInfo = "vehicle_positions.trip_id:0",
     singlePartition = true
 )
 public class InsertPosition extends VoltProcedure {
-    private static final SimpleDateFormat dateFormat = CommonUtils.getDateFormat();
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
 
-    public static final SQLStmt getTripSQL =
-        new SQLStmt("SELECT COUNT(*) FROM trips WHERE trip_id = ?;");
+    // Validates the trip and stop, and finds the trip's current position, in one
+    // lookup. Every trip has stop times, so a stop that exists implies the trip
+    // does. There is no row only if the stop doesn't exist. Also finds the inference
+    // inputs: the time of the trip's update for the date, to tell whether it is
+    // fresher than the position, and the stop's effective arrival, if any. And the
+    // versions of the stops and of the trip's stop times, to tell whether the trip's
+    // cached stops are still current.
+    public static final SQLStmt probeSQL =
+        new SQLStmt("SELECT cvp.timestamp, st.arrival_usec, tu.time_usec, est.arrival_usec, " +
+                    "sv.version, stv.version " +
+                    "FROM stop_times st " +
+                    "LEFT JOIN current_vehicle_positions cvp " +
+                    "ON st.trip_id = cvp.trip_id " +
+                    "LEFT JOIN trip_updates tu " +
+                    "ON st.trip_id = tu.trip_id AND tu.start_date = ? " +
+                    "LEFT JOIN effective_stop_times est " +
+                    "ON st.trip_id = est.trip_id AND est.start_date = ? " +
+                    "AND st.stop_sequence = est.stop_sequence " +
+                    "LEFT JOIN stops_version sv " +
+                    "ON sv.id = 0 " +
+                    "LEFT JOIN stop_times_version stv " +
+                    "ON st.trip_id = stv.trip_id " +
+                    "WHERE st.trip_id = ? AND st.stop_sequence = ?;");
+    public static final SQLStmt getStopTimesSQL =
+        new SQLStmt("SELECT stop_sequence, arrival_usec, departure_usec, stop_id " +
+                    "FROM stop_times WHERE trip_id = ? AND stop_sequence >= ? " +
+                    "ORDER BY stop_sequence;");
+    public static final SQLStmt getEffectsSQL =
+        new SQLStmt("SELECT stop_sequence, arrival_usec, departure_usec " +
+                    "FROM effective_stop_times WHERE trip_id = ? AND start_date = ? AND stop_sequence >= ? " +
+                    "ORDER BY stop_sequence;");
+    public static final SQLStmt getRouteSQL =
+        new SQLStmt("SELECT route_id FROM trips WHERE trip_id = ?;");
 
-    public static final SQLStmt getLastSQL =
-        new SQLStmt("SELECT COUNT(*) FROM vehicle_positions WHERE trip_id = ? AND timestamp >= ?;");
+    public static final SQLStmt insertEffectSQL =
+        new SQLStmt("INSERT INTO effective_stop_times VALUES (?, ?, ?, ?, ?, ?, ?);");
+    public static final SQLStmt updateEffectSQL =
+        new SQLStmt("UPDATE effective_stop_times SET time_usec = ?, arrival_usec = ?, departure_usec = ? " +
+                    "WHERE trip_id = ? AND start_date = ? AND stop_sequence = ?;");
 
-    public static final SQLStmt getStopSQL =
-        new SQLStmt("SELECT COUNT(*) FROM stop_times WHERE trip_id = ? AND stop_sequence = ?;");
+    /// The path the position is snapped to.
+    public static final SQLStmt getTripStopsSQL =
+        new SQLStmt("SELECT st.stop_sequence, s.stop_lat, s.stop_lon " +
+                    "FROM stop_times st, stops s " +
+                    "WHERE st.trip_id = ? AND st.stop_id = s.stop_id " +
+                    "ORDER BY st.stop_sequence;");
 
     public static final SQLStmt insertSQL =
-        new SQLStmt("INSERT INTO vehicle_positions VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        new SQLStmt("INSERT INTO vehicle_positions VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
 
-    public static final SQLStmt deleteOldSQL =
-        new SQLStmt("DELETE FROM vehicle_positions WHERE trip_id = ? AND timestamp < ?;");
+    public static final SQLStmt insertCurrentSQL =
+        new SQLStmt("INSERT INTO current_vehicle_positions VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+
+    public static final SQLStmt updateCurrentSQL =
+        new SQLStmt("UPDATE current_vehicle_positions " +
+                    "SET start_date = ?, start_usec = ?, timestamp = ?, time_usec = ?, " +
+                    "stop_sequence = ?, relationship = ?, latitude = ?, longitude = ?, grid_cell = ?, " +
+                    "distance = ?, next_stop_sequence = ?, progress = ? " +
+                    "WHERE trip_id = ?;");
+
+    // Segments within this many meters of the nearest one are taken to be as near, and
+    // then the one at the feed's stop wins. Keeps vehicles on routes that double back
+    // along the same street from snapping to the wrong direction.
+    private static final double SNAP_TOLERANCE = 50;
+
+    // The stops of the most recently seen trips, cached by this site until the stops
+    // change, or the trip's stop times do. Every site snaps with the same rows, so
+    // this is deterministic.
+    private static final int MAX_CACHED_TRIPS = 10000;
+    private final Map<String, TripStops> tripStops =
+        new LinkedHashMap<String, TripStops>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TripStops> eldest) {
+                return size() > MAX_CACHED_TRIPS;
+            }
+        };
+    private long stopsVersion = -1;
+
+    /**
+     * The coordinates of a trip's stops in order, and the distance along the straight
+     * path between them to each one.
+     */
+    private static class TripStops {
+        // The version of the trip's stop times when cached
+        final long version;
+        final int[] sequences;
+        final double[] lats;
+        final double[] lons;
+        final double[] distances;
+
+        TripStops(long version, VoltTable stops)
+        {
+            this.version = version;
+            int count = stops.getRowCount();
+            sequences = new int[count];
+            lats = new double[count];
+            lons = new double[count];
+            distances = new double[count];
+            for (int i = 0; stops.advanceRow(); i++) {
+                sequences[i] = (int) stops.getLong(0);
+                lats[i] = stops.getDouble(1);
+                lons[i] = stops.getDouble(2);
+                if (i > 0) {
+                    distances[i] = distances[i - 1] +
+                        GeoGrid.distance(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+                }
+            }
+        }
+
+        /**
+         * Project the point onto the nearest segment of the path between consecutive
+         * stops, preferring the segments at stop_sequence when nearly as near.
+         */
+        Snap snap(double lat, double lon, int stop_sequence)
+        {
+            if (sequences.length < 2) {
+                return new Snap(0, sequences.length == 0 ? stop_sequence : sequences[0], 1);
+            }
+            double scale = Math.cos(Math.toRadians(lat));
+            int nearest = -1;
+            double nearestDistance = Double.MAX_VALUE;
+            double nearestFraction = 0;
+            int atStop = -1;
+            double atStopDistance = Double.MAX_VALUE;
+            double atStopFraction = 0;
+            for (int i = 0; i + 1 < sequences.length; i++) {
+                // Flat coordinates relative to the point, in degrees of latitude
+                double ax = (lons[i] - lon) * scale;
+                double ay = lats[i] - lat;
+                double dx = (lons[i + 1] - lons[i]) * scale;
+                double dy = lats[i + 1] - lats[i];
+                double length = dx * dx + dy * dy;
+                double fraction = length == 0 ? 0 : -(ax * dx + ay * dy) / length;
+                fraction = Math.max(0, Math.min(1, fraction));
+                double distance = GeoGrid.distance(lat, lon,
+                                                   lats[i] + fraction * dy,
+                                                   lons[i] + fraction * (lons[i + 1] - lons[i]));
+                if (distance < nearestDistance) {
+                    nearest = i;
+                    nearestDistance = distance;
+                    nearestFraction = fraction;
+                }
+                if ((sequences[i] == stop_sequence || sequences[i + 1] == stop_sequence) &&
+                    distance < atStopDistance) {
+                    atStop = i;
+                    atStopDistance = distance;
+                    atStopFraction = fraction;
+                }
+            }
+            if (atStop >= 0 && atStopDistance <= nearestDistance + SNAP_TOLERANCE) {
+                nearest = atStop;
+                nearestFraction = atStopFraction;
+            }
+            return new Snap(distances[nearest] +
+                            nearestFraction * (distances[nearest + 1] - distances[nearest]),
+                            sequences[nearest + 1],
+                            nearestFraction);
+        }
+    }
+
+    private static class Snap {
+        final double distance;
+        final int nextStopSequence;
+        final double progress;
+
+        Snap(double distance, int nextStopSequence, double progress)
+        {
+            this.distance = distance;
+            this.nextStopSequence = nextStopSequence;
+            this.progress = progress;
+        }
+    }
+
+    // How much later than its effective arrival a vehicle must be seen before its stop
+    // for the rest of the trip to be held back. Keeps positions that are only seconds
+    // off from rewriting the trip.
+    public static final long INFERENCE_THRESHOLD = 60 * 1000 * 1000L;
 
     /**
-     * @param history the number of seconds of history to keep in the database
+     * Old positions are deleted by PruneHistory, not here.
+     *
+     * A vehicle that hasn't left its current stop by the time of the position is at
+     * least that late for the stop. Unless a trip update at least as fresh as the
+     * position exists, that lateness is added to the effective stop times of the stop
+     * and the rest of the trip, so that they stay current between trip updates. A
+     * position can only hold the trip back; it can't tell an early vehicle from one
+     * still on its way to the stop.
+     *
+     * Returns the arrivals held back, in the shape of
+     * UpdateStopArrivals.newArrivalsTable(), for the loader to copy to stop_arrivals
+     * as it does those of InsertTripUpdate. No rows if nothing was held back.
      */
-    public long run(String trip_id, String start_date, byte relationship,
-                    double lat, double lon, int stop_sequence,
-                    long ts, long history)
+    public VoltTable run(String trip_id, String start_date, byte relationship,
+                         double lat, double lon, int stop_sequence,
+                         long ts)
             throws ParseException {
-        Date start = dateFormat.parse(start_date);
-        long currentTime = getTransactionTime().getTime();
-        // Entries before this timestamp will be deleted
-        long expiration = currentTime - history;
-
-        voltQueueSQL(deleteOldSQL, trip_id, expiration);
-        voltQueueSQL(getLastSQL, trip_id, ts);
-        voltQueueSQL(getTripSQL, trip_id);
-        voltQueueSQL(getStopSQL, trip_id, stop_sequence);
-        VoltTable[] result = voltExecuteSQL();
-        long newerRecords = result[1].asScalarLong();
-        long tripCount = result[2].asScalarLong();
-        long stopCount = result[3].asScalarLong();
+        long start = ServiceDays.parse(start_date);
+        VoltTable arrivals = UpdateStopArrivals.newArrivalsTable();
+
+        voltQueueSQL(probeSQL, start_date, start_date, trip_id, stop_sequence);
+        VoltTable probe = voltExecuteSQL()[0];
 
-        if (newerRecords > 0) {
+        if (!probe.advanceRow()) {
+            // No such trip or stop, drop this record
+            return arrivals;
+        }
+        long current = probe.getTimestampAsLong(0);
+        boolean hasCurrent = !probe.wasNull();
+        if (hasCurrent && current >= ts) {
             // There are newer records for this trip, drop this one
-            return 0;
+            return arrivals;
+        }
+
+        // A missing version, e.g. of a schedule loaded some other way, reads as the
+        // BIGINT null value, which is just another version here
+        long version = probe.getLong(4);
+        if (version != stopsVersion) {
+            tripStops.clear();
+            stopsVersion = version;
+        }
+        long tripVersion = probe.getLong(5);
+        TripStops stops = tripStops.get(trip_id);
+        if (stops == null || stops.version != tripVersion) {
+            voltQueueSQL(getTripStopsSQL, trip_id);
+            stops = new TripStops(tripVersion, voltExecuteSQL()[0]);
+            tripStops.put(trip_id, stops);
         }
-        if (tripCount != 1) {
-            // No such trip, drop this record
-            return 0;
+        Snap snap = stops.snap(lat, lon, stop_sequence);
+
+        long effective = probe.getLong(3);
+        if (probe.wasNull()) {
+            effective = probe.getLong(1);
         }
-        if (stopCount != 1) {
-            // No such stop, drop this record
-            return 0;
+        long updated = probe.getLong(2);
+        boolean fresherUpdate = !probe.wasNull() && updated >= ts;
+        long lateness = ts - (start + effective);
+        if (!fresherUpdate && lateness >= INFERENCE_THRESHOLD) {
+            arrivals = holdBack(trip_id, start_date, start, stop_sequence, lateness, ts);
         }
 
         voltQueueSQL(insertSQL, trip_id, start_date, start, ts, ts, stop_sequence,
-                     relationship, lat, lon);
+                     relationship, lat, lon,
+                     snap.distance, snap.nextStopSequence, snap.progress);
+        if (hasCurrent) {
+            voltQueueSQL(updateCurrentSQL, start_date, start, ts, ts, stop_sequence,
+                         relationship, lat, lon, GeoGrid.cellOf(lat, lon),
+                         snap.distance, snap.nextStopSequence, snap.progress, trip_id);
+        } else {
+            voltQueueSQL(insertCurrentSQL, trip_id, start_date, start, ts, ts, stop_sequence,
+                         relationship, lat, lon, GeoGrid.cellOf(lat, lon),
+                         snap.distance, snap.nextStopSequence, snap.progress);
+        }
+        voltExecuteSQL(true);
+        return arrivals;
+    }
+
+    /**
+     * Add lateness to the effective stop times of the trip from stop_sequence onwards.
+     *
+     * @return the new arrivals at those stops
+     */
+    private VoltTable holdBack(String trip_id, String start_date, long start, int stop_sequence,
+                               long lateness, long ts)
+    {
+        voltQueueSQL(getStopTimesSQL, trip_id, stop_sequence);
+        voltQueueSQL(getEffectsSQL, trip_id, start_date, stop_sequence);
+        voltQueueSQL(getRouteSQL, trip_id);
+        VoltTable[] result = voltExecuteSQL();
+        VoltTable stopTimes = result[0];
+        VoltTable effects = result[1];
+        String route_id = result[2].fetchRow(0).getString(0);
+        boolean hasEffect = effects.advanceRow();
+
+        VoltTable arrivals = UpdateStopArrivals.newArrivalsTable();
+
+        int queued = 0;
+        while (stopTimes.advanceRow()) {
+            if (queued >= MAX_BATCH_SIZE) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+            int sequence = (int) stopTimes.getLong(0);
+            long arrival;
+            // Both are in stop order, and every effect is for a scheduled stop.
+            if (hasEffect && effects.getLong(0) == sequence) {
+                arrival = effects.getLong(1) + lateness;
+                voltQueueSQL(updateEffectSQL, ts,
+                             arrival, effects.getLong(2) + lateness,
+                             trip_id, start_date, sequence);
+                hasEffect = effects.advanceRow();
+            }
+            else {
+                arrival = stopTimes.getLong(1) + lateness;
+                voltQueueSQL(insertEffectSQL, trip_id, start_date, start, ts,
+                             arrival, stopTimes.getLong(2) + lateness,
+                             sequence);
+            }
+            queued++;
+            arrivals.addRow(stopTimes.getString(3), trip_id, start_date, route_id, start,
+                            sequence, start + arrival, arrival - stopTimes.getLong(1), ts);
+        }
         voltExecuteSQL();
-        return 1;
+        return arrivals;
     }
 }
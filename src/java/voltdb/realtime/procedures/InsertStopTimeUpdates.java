@@ -27,19 +27,15 @@ import org.voltdb.ProcInfo;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 @ProcInfo(
     partitionInfo = "trip_updates.trip_id:0",
     singlePartition = true
 )
 public class InsertStopTimeUpdates extends VoltProcedure {
-    private static final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
-
     /// Validation - is there a stop in the base schedule?
     public static final SQLStmt getStopSQL =
         new SQLStmt("SELECT count(*) FROM stop_times WHERE trip_id = ? AND stop_sequence = ?;");
@@ -51,7 +47,7 @@ public class InsertStopTimeUpdates extends VoltProcedure {
      */
     public long run(String trip_id, String start_date, long ts, int stop_sequence, long delay)
             throws ParseException {
-        Date start = dateFormat.parse(start_date);
+        long start = ServiceDays.parse(start_date);
         voltQueueSQL(getStopSQL, trip_id, stop_sequence);
         VoltTable[] result = voltExecuteSQL();
         long stopCount = result[0].asScalarLong();
@@ -60,7 +56,7 @@ public class InsertStopTimeUpdates extends VoltProcedure {
             return 0;
         }
 
-        voltQueueSQL(insertSQL, trip_id, start, start, ts, stop_sequence, delay);
+        voltQueueSQL(insertSQL, trip_id, start_date, start, ts, stop_sequence, delay);
         voltExecuteSQL();
         return 1;
     }
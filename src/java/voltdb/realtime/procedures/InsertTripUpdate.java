@@ -0,0 +1,193 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import voltdb.ServiceDays;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Applies a whole TripUpdate in one transaction: the work of InsertUpdate,
+ * one InsertStopTimeUpdates per stop and EffectStopTimeUpdates.
+ */
+@ProcInfo(
+    partitionInfo = "trip_updates.trip_id:0",
+    singlePartition = true
+)
+public class InsertTripUpdate extends VoltProcedure {
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
+
+    /// Validation #1. Guard against out-of-order arrival of conflicting updates.
+    public static final SQLStmt getLastSQL =
+        new SQLStmt("SELECT COUNT(*) FROM trip_updates WHERE trip_id = ? AND timestamp >= ?;");
+    /// Validation #2. Guard against corrupted trip id or corrupted or out of sync base schedule.
+    public static final SQLStmt getTripSQL =
+        new SQLStmt("SELECT route_id FROM trips WHERE trip_id = ?;");
+
+    /// Validation #3 and the base schedule the delays apply to.
+    public static final SQLStmt getStopTimesSQL =
+        new SQLStmt("SELECT stop_sequence, arrival_usec, departure_usec, stop_id " +
+                    "FROM stop_times WHERE trip_id = ? " +
+                    "ORDER BY stop_sequence;");
+
+    /// The effects of a prior update of the same trip on the same date, to be diffed against.
+    public static final SQLStmt getEffectsSQL =
+        new SQLStmt("SELECT stop_sequence, arrival_usec, departure_usec " +
+                    "FROM effective_stop_times WHERE trip_id = ? AND start_date = ? " +
+                    "ORDER BY stop_sequence;");
+
+    /// Override a prior update of the same trip on the same date.
+    public static final SQLStmt clearUpdateSQL =
+        new SQLStmt("DELETE FROM trip_updates WHERE trip_id = ? AND start_date = ?;");
+    public static final SQLStmt clearStopTimeUpdatesSQL =
+        new SQLStmt("DELETE FROM stop_time_updates WHERE trip_id = ? AND start_date = ?;");
+    public static final SQLStmt updateEffectSQL =
+        new SQLStmt("UPDATE effective_stop_times SET time_usec = ?, arrival_usec = ?, departure_usec = ? " +
+                    "WHERE trip_id = ? AND start_date = ? AND stop_sequence = ?;");
+    public static final SQLStmt deleteEffectSQL =
+        new SQLStmt("DELETE FROM effective_stop_times WHERE trip_id = ? AND start_date = ? AND stop_sequence = ?;");
+
+    /// Main effects.
+    public static final SQLStmt insertUpdateSQL =
+        new SQLStmt("INSERT INTO trip_updates VALUES (?, ?, ?, ?, ?, ?);");
+    public static final SQLStmt insertStopTimeUpdateSQL =
+        new SQLStmt("INSERT INTO stop_time_updates VALUES (?, ?, ?, ?, ?, ?);");
+    public static final SQLStmt insertEffectSQL =
+        new SQLStmt("INSERT INTO effective_stop_times VALUES (?, ?, ?, ?, ?, ?, ?);");
+
+    /**
+     * Returns the upcoming arrivals of the trip, one row per stop not yet reached as
+     * of the update in the shape of UpdateStopArrivals.newArrivalsTable(), for the
+     * loader to copy to stop_arrivals. No rows if the update was dropped.
+     *
+     * @param stop_sequences stop sequences of the stop time updates
+     * @param delays delays in microseconds, parallel to stop_sequences
+     */
+    public VoltTable run(String trip_id, String start_date, long ts, byte relationship,
+                    int[] stop_sequences, long[] delays)
+            throws ParseException {
+        if (stop_sequences.length != delays.length) {
+            throw new VoltAbortException("Got " + stop_sequences.length + " stop sequences but " +
+                                         delays.length + " delays");
+        }
+
+        long start = ServiceDays.parse(start_date);
+        VoltTable arrivals = UpdateStopArrivals.newArrivalsTable();
+
+        voltQueueSQL(getLastSQL, trip_id, ts);            // -> result[0]
+        voltQueueSQL(getTripSQL, trip_id);                // -> result[1]
+        voltQueueSQL(getStopTimesSQL, trip_id);           // -> result[2]
+        voltQueueSQL(getEffectsSQL, trip_id, start_date); // -> result[3]
+        VoltTable[] result = voltExecuteSQL();
+        long newerRecords = result[0].asScalarLong();
+        if (newerRecords > 0) {
+            // There are newer records for this trip, drop this one
+            return arrivals;
+        }
+        VoltTable trip = result[1];
+        if (trip.getRowCount() != 1) {
+            // No such trip, drop this record
+            return arrivals;
+        }
+        String route_id = trip.fetchRow(0).getString(0);
+
+        Map<Integer, Long> delayBySequence = new HashMap<Integer, Long>();
+        for (int i = 0; i < stop_sequences.length; i++) {
+            delayBySequence.put(stop_sequences[i], delays[i]);
+        }
+
+        voltQueueSQL(clearUpdateSQL, trip_id, start_date);
+        voltQueueSQL(clearStopTimeUpdatesSQL, trip_id, start_date);
+        voltQueueSQL(insertUpdateSQL, trip_id, start_date, start, ts, ts, relationship);
+
+        // Walk the base schedule in stop order, carrying each updated delay forward
+        // to the following stops until the next update, as EffectStopTimeUpdates does.
+        // Updates for stops that are not in the base schedule are dropped. Only the
+        // effective stop times that differ from the prior update's are written.
+        Map<Integer, long[]> priorEffects = EffectStopTimeUpdates.byStopSequence(result[3]);
+        VoltTable stopTimes = result[2];
+        long delay = 0;
+        int queued = 3;
+        while (stopTimes.advanceRow()) {
+            if (queued >= MAX_BATCH_SIZE - 2) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+            int stop_sequence = (int) stopTimes.getLong(0);
+            Long update = delayBySequence.get(stop_sequence);
+            if (update != null) {
+                delay = update;
+                voltQueueSQL(insertStopTimeUpdateSQL,
+                             trip_id, start_date, start, ts, stop_sequence, delay);
+                queued++;
+            }
+
+            long arrival = stopTimes.getLong(1) + delay;
+            if (start + arrival >= ts) {
+                arrivals.addRow(stopTimes.getString(3), trip_id, start_date, route_id, start,
+                                stop_sequence, start + arrival, delay, ts);
+            }
+
+            long[] prior = priorEffects.remove(stop_sequence);
+            if (delay == 0) {
+                // This part of the schedule effectively returned to normal.
+                if (prior != null) {
+                    voltQueueSQL(deleteEffectSQL, trip_id, start_date, stop_sequence);
+                    queued++;
+                }
+                continue;
+            }
+            // Assume that delay has no effect on the stop's duration.
+            long departure = stopTimes.getLong(2) + delay;
+            if (prior == null) {
+                voltQueueSQL(insertEffectSQL,
+                             trip_id, start_date, start, ts, arrival, departure, stop_sequence);
+                queued++;
+            }
+            else if (prior[0] != arrival || prior[1] != departure) {
+                voltQueueSQL(updateEffectSQL,
+                             ts, arrival, departure, trip_id, start_date, stop_sequence);
+                queued++;
+            }
+        }
+        // Effects on stops that have since left the base schedule
+        for (int stop_sequence : priorEffects.keySet()) {
+            if (queued >= MAX_BATCH_SIZE) {
+                voltExecuteSQL();
+                queued = 0;
+            }
+            voltQueueSQL(deleteEffectSQL, trip_id, start_date, stop_sequence);
+            queued++;
+        }
+        voltExecuteSQL(true);
+        return arrivals;
+    }
+}
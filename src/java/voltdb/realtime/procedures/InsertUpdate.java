@@ -27,25 +27,15 @@ import org.voltdb.ProcInfo;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
-import voltdb.CommonUtils;
+import voltdb.ServiceDays;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 @ProcInfo(
     partitionInfo = "trip_updates.trip_id:0",
     singlePartition = true
 )
 public class InsertUpdate extends VoltProcedure {
-    private static final SimpleDateFormat dateFormat = CommonUtils.getNoonBasedDateFormat();
-
-    /// Garbage collection.
-    /// This MIGHT be more effective if it was not timestamp qualified, as that would collect
-    /// trip_updates for other trip_ids on the same partition that had become inactive.
-    public static final SQLStmt deleteOldSQL =
-        new SQLStmt("DELETE FROM trip_updates WHERE trip_id = ? AND timestamp < ?;");
-
     /// Validation #1. Guard against out-of-order arrival of conflicting updates.
     public static final SQLStmt getLastSQL =
         new SQLStmt("SELECT COUNT(*) FROM trip_updates WHERE trip_id = ? AND timestamp >= ?;");
@@ -58,32 +48,28 @@ public class InsertUpdate extends VoltProcedure {
         new SQLStmt("INSERT INTO trip_updates VALUES (?, ?, ?, ?, ?, ?);");
 
     /**
-     * @param history the number of seconds of history to keep in the database
+     * Old updates are deleted by PruneHistory, not here.
      */
     public long run(String trip_id, String start_date, long ts,
-                    byte relationship, long history)
+                    byte relationship)
             throws ParseException {
-        Date start = dateFormat.parse(start_date);
-        long currentTime = getTransactionTime().getTime();
-        // Entries before this timestamp will be deleted
-        long expiration = currentTime - history;
+        long start = ServiceDays.parse(start_date);
 
-        voltQueueSQL(deleteOldSQL, trip_id, expiration);  // -> result[0] (ignored)
-        voltQueueSQL(getLastSQL, trip_id, ts);            // -> result[1]
-        voltQueueSQL(getTripSQL, trip_id);                // -> result[2]
+        voltQueueSQL(getLastSQL, trip_id, ts);            // -> result[0]
+        voltQueueSQL(getTripSQL, trip_id);                // -> result[1]
         VoltTable[] result = voltExecuteSQL();
-        long newerRecords = result[1].asScalarLong();
+        long newerRecords = result[0].asScalarLong();
         if (newerRecords > 0) {
             // There are newer records for this trip, drop this one
             return 0;
         }
-        long tripCount = result[2].asScalarLong();
+        long tripCount = result[1].asScalarLong();
         if (tripCount != 1) {
             // No such trip, drop this record
             return 0;
         }
 
-        voltQueueSQL(insertSQL, trip_id, start, start, ts, ts, relationship);
+        voltQueueSQL(insertSQL, trip_id, start_date, start, ts, ts, relationship);
         voltExecuteSQL();
         return 1;
     }
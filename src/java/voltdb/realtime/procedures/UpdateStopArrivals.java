@@ -0,0 +1,147 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2013 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package voltdb.realtime.procedures;
+
+import org.voltdb.ProcInfo;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records upcoming arrivals of trips at one stop in stop_arrivals, as returned by
+ * InsertTripUpdate and InsertPosition, so that stop queries can be answered by the
+ * stop's partition.
+ * The loader gathers the arrivals of a whole feed by stop, so that each stop costs
+ * one call per feed however many trips call at it. Past arrivals are deleted by
+ * the retention job.
+ */
+@ProcInfo(
+    partitionInfo = "stop_arrivals.stop_id:0",
+    singlePartition = true
+)
+public class UpdateStopArrivals extends VoltProcedure {
+    // VoltDB limits the number of statements queued in a single batch.
+    private static final int MAX_BATCH_SIZE = 200;
+
+    public static final SQLStmt getArrivalSQL =
+        new SQLStmt("SELECT time_usec FROM stop_arrivals " +
+                    "WHERE stop_id = ? AND trip_id = ? AND start_date = ? AND stop_sequence = ?;");
+
+    public static final SQLStmt insertArrivalSQL =
+        new SQLStmt("INSERT INTO stop_arrivals VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+
+    public static final SQLStmt updateArrivalSQL =
+        new SQLStmt("UPDATE stop_arrivals SET arrival_usec = ?, delay = ?, time_usec = ? " +
+                    "WHERE stop_id = ? AND trip_id = ? AND start_date = ? AND stop_sequence = ?;");
+
+    /**
+     * The rows procedures return for the loader to pass on here: stop_id, trip_id,
+     * start_date, route_id, start_usec, stop_sequence, arrival_usec, delay and
+     * time_usec.
+     */
+    public static VoltTable newArrivalsTable()
+    {
+        return new VoltTable(new VoltTable.ColumnInfo("stop_id", VoltType.STRING),
+                             new VoltTable.ColumnInfo("trip_id", VoltType.STRING),
+                             new VoltTable.ColumnInfo("start_date", VoltType.STRING),
+                             new VoltTable.ColumnInfo("route_id", VoltType.STRING),
+                             new VoltTable.ColumnInfo("start_usec", VoltType.BIGINT),
+                             new VoltTable.ColumnInfo("stop_sequence", VoltType.INTEGER),
+                             new VoltTable.ColumnInfo("arrival_usec", VoltType.BIGINT),
+                             new VoltTable.ColumnInfo("delay", VoltType.BIGINT),
+                             new VoltTable.ColumnInfo("time_usec", VoltType.BIGINT));
+    }
+
+    /**
+     * The arrivals travel as parallel arrays, one element per arrival. An arrival older
+     * than the one stored, or than another one of the same trip and stop in the arrays,
+     * is dropped.
+     *
+     * @param arrival_usecs the effective arrival times in microseconds
+     * @param delays the delays in microseconds
+     * @param time_usecs the timestamps of the updates in microseconds
+     * @return the number of arrivals recorded
+     */
+    public long run(String stop_id, String[] trip_ids, String[] start_dates, String[] route_ids,
+                    long[] start_usecs, int[] stop_sequences, long[] arrival_usecs, long[] delays,
+                    long[] time_usecs)
+    {
+        int count = trip_ids.length;
+        if (start_dates.length != count || route_ids.length != count || start_usecs.length != count ||
+            stop_sequences.length != count || arrival_usecs.length != count ||
+            delays.length != count || time_usecs.length != count) {
+            throw new VoltAbortException("Got arrays of different lengths for " + count + " arrivals");
+        }
+
+        // The newest of the arrivals of each trip at the stop
+        Map<String, Integer> newest = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            String key = trip_ids[i] + '/' + start_dates[i] + '/' + stop_sequences[i];
+            Integer other = newest.get(key);
+            if (other == null || time_usecs[other] <= time_usecs[i]) {
+                newest.put(key, i);
+            }
+        }
+        List<Integer> arrivals = new ArrayList<Integer>(newest.values());
+
+        long recorded = 0;
+        for (int first = 0; first < arrivals.size(); first += MAX_BATCH_SIZE) {
+            int last = Math.min(first + MAX_BATCH_SIZE, arrivals.size());
+            for (int i : arrivals.subList(first, last)) {
+                voltQueueSQL(getArrivalSQL, stop_id, trip_ids[i], start_dates[i], stop_sequences[i]);
+            }
+            VoltTable[] existing = voltExecuteSQL();
+
+            int queued = 0;
+            for (int j = first; j < last; j++) {
+                int i = arrivals.get(j);
+                VoltTable arrival = existing[j - first];
+                boolean exists = arrival.advanceRow();
+                if (exists && arrival.getLong(0) > time_usecs[i]) {
+                    // There is a newer update for this arrival, drop this one
+                    continue;
+                }
+                if (exists) {
+                    voltQueueSQL(updateArrivalSQL, arrival_usecs[i], delays[i], time_usecs[i],
+                                 stop_id, trip_ids[i], start_dates[i], stop_sequences[i]);
+                } else {
+                    voltQueueSQL(insertArrivalSQL, stop_id, trip_ids[i], start_dates[i], route_ids[i],
+                                 start_usecs[i], stop_sequences[i], arrival_usecs[i], delays[i],
+                                 time_usecs[i]);
+                }
+                recorded++;
+                queued++;
+            }
+            if (queued > 0) {
+                voltExecuteSQL(last == arrivals.size());
+            }
+        }
+        return recorded;
+    }
+}
@@ -9,6 +9,8 @@ var endMarker;
 var busPositions = {};
 // true to show bus locations
 var showPositions = false;
+// pending refresh of the bus locations in view
+var positionsTimer = null;
 // current bus routes, key is tripID, value is (tripID, startDate, stopID)
 var busTrips = {};
 // Google Maps direction service
@@ -32,6 +34,13 @@ function initialize() {
   google.maps.event.addListener(map, 'click', function(event) {
     placeStartMarker(event.latLng);
   });
+
+  // Fetch the bus locations of the new viewport once the map settles
+  google.maps.event.addListener(map, 'idle', function() {
+    if (showPositions) {
+      getAllPositions();
+    }
+  });
 }
 
 function setupMarkers() {
@@ -81,6 +90,44 @@ function getTripPosition(trip) {
   });
 }
 
+// Only the buses in the viewport are fetched, and shown.
+function getAllPositions() {
+  window.clearTimeout(positionsTimer);
+  positionsTimer = null;
+
+  var bounds = map.getBounds();
+  if (!bounds) {
+    return; // Not laid out yet, the 'idle' event will follow
+  }
+  var params = {'south': bounds.getSouthWest().lat(),
+                'west': bounds.getSouthWest().lng(),
+                'north': bounds.getNorthEast().lat(),
+                'east': bounds.getNorthEast().lng()};
+  query('positions/', params, function(data) {
+    removePositionsExcept(data);
+    updatePositions(data);
+
+    if (showPositions && positionsTimer === null) {
+      // Update the positions 30 seconds later
+      positionsTimer = window.setTimeout(getAllPositions, 30000);
+    }
+  });
+}
+
+// Drop the markers of the buses that are not in the positions, except watched trips
+function removePositionsExcept(positions) {
+  var inView = {};
+  positions.forEach(function(element) {
+    inView[element['tripId']] = true;
+  });
+  for (var key in busPositions) {
+    if (!(key in inView) && !(key in busTrips)) {
+      busPositions[key].setMap(null);
+      delete busPositions[key];
+    }
+  }
+}
+
 function updatePositions(positions) {
   positions.forEach(function(element) {
     var marker = busPositions[element['tripId']];
@@ -223,6 +270,9 @@ function createPositionBtn(controlDiv, map) {
   google.maps.event.addDomListener(controlUI, 'click', function() {
     showPositions = togglePositionBtn(controlUI);
     togglePositionMarkerVisibility(showPositions);
+    if (showPositions) {
+      getAllPositions();
+    }
   });
 }
 
@@ -44,29 +44,69 @@ def getResults(resp) {
 }
 
 String positionsTableToJson(table) {
-    JsonBuilder builder = new JsonBuilder()
-    if (table) {
-        builder {
-            tripId table[0]
-            lat    table[1]
-            lng    table[2]
-        }
-    }
-    builder.toString()
+    new JsonBuilder(table.collect { row ->
+        [tripId: row[0], lat: row[1], lng: row[2]]
+    }).toString()
+}
+
+// Turn a departure board row into [tripId, startDate, eta, stopId]
+String departureToJson(row, long now) {
+    long minutes = Math.max(0, Math.round((row[4] - now) / 60000000.0))
+    new JsonBuilder([row[0], row[1], minutes + " min", row[3]]).toString()
 }
 
 // Find the next trip of the route that's gonna arrive at the stop
 rm.get('/api/route/') { req ->
     logger.info "Get next trip for route " + req.params
-    eb.send("volt", invokeAs("FindNextTrip",
-                             req.params["routeId"],
+    long now = System.currentTimeMillis() * 1000
+    eb.send("volt", invokeAs("GetDepartureBoard",
                              req.params["stopName"],
-                             Long.toString(System.currentTimeMillis()))) { reply ->
+                             req.params["routeId"] ?: "",
+                             Long.toString(now),
+                             "1")) { reply ->
         resp = parseResponse(reply.body)
         if ( ! checkError(req, resp)) {
             logger.info "results " + getResults(resp)
+            def rows = getResults(resp)
+            if (rows) {
+                req.response.headers["Content-Type"] = 'application/json; charset=UTF-8'
+                req.response.end departureToJson(rows[0], now)
+            } else {
+                req.response.with {
+                    statusCode = 404
+                    statusMessage = "No upcoming arrivals"
+                    end()
+                }
+            }
+        }
+    }
+}
+
+// List the next arrivals at the stop, of all routes unless one is given. Given a
+// stopId, only the arrivals of trips with updates are listed, read from the stop's
+// own partition; given a stopName, those of all scheduled trips, from all of them.
+rm.get('/api/stop/') { req ->
+    long now = System.currentTimeMillis() * 1000
+    def stopId = req.params["stopId"]
+    def routeId = req.params["routeId"]
+    def limit = req.params["limit"] ?: "10"
+    def invocation
+    if (stopId && routeId) {
+        invocation = invokeAs("GetStopRouteArrivals", stopId, routeId, Long.toString(now), limit)
+    } else if (stopId) {
+        invocation = invokeAs("GetStopArrivals", stopId, Long.toString(now), limit)
+    } else {
+        invocation = invokeAs("GetDepartureBoard", req.params["stopName"], routeId ?: "",
+                              Long.toString(now), limit)
+    }
+    eb.send("volt", invocation) { reply ->
+        resp = parseResponse(reply.body)
+        if ( ! checkError(req, resp)) {
             req.response.headers["Content-Type"] = 'application/json; charset=UTF-8'
-            req.response.end getResults(resp)
+            req.response.end new JsonBuilder(getResults(resp).collect { row ->
+                [tripId: row[0], startDate: row[1], routeId: row[2], stopId: row[3],
+                 arrival: row[4], delay: row[5]]
+            }).toString()
         }
     }
 }
@@ -90,10 +130,8 @@ rm.get('/api/trip/subscribe/') { req ->
 
 // Find the position of the given trip
 rm.get('/api/trip/position/') { req ->
-    logger.info req.params
-    logger.info "getting lastest schedule " + req.params
-//    eb.send("volt", invokeAs("GetLatestSchedule", params.tripId)) { reply ->
-    eb.send("volt", invokeAs("@AdHoc", "select trip_id, latitude, longitude from vehicle_positions where trip_id = '19957644';")) { reply ->
+    logger.info "getting position " + req.params
+    eb.send("volt", invokeAs("GetVehiclePosition", req.params["tripId"])) { reply ->
         resp = parseResponse(reply.body)
         if ( ! checkError(req, resp)) {
             logger.info "results " + getResults(resp)
@@ -103,6 +141,66 @@ rm.get('/api/trip/position/') { req ->
     }
 }
 
+// Bounding box parameters of a request, or null if it has none
+def boxParams(req) {
+    def box = ['south', 'west', 'north', 'east'].collect { req.params[it] }
+    box.every() ? box : null
+}
+
+// Find the positions of all vehicles that reported in the last 10 minutes, within the
+// south, west, north and east bounds if given
+rm.get('/api/positions/') { req ->
+    long since = (System.currentTimeMillis() - 10 * 60 * 1000) * 1000
+    def box = boxParams(req)
+    def invocation = box ? invokeAs("GetVehiclesInBox", ([Long.toString(since)] + box) as String[])
+                         : invokeAs("GetVehiclePositions", Long.toString(since))
+    eb.send("volt", invocation) { reply ->
+        resp = parseResponse(reply.body)
+        if ( ! checkError(req, resp)) {
+            req.response.headers["Content-Type"] = 'application/json; charset=UTF-8'
+            req.response.end positionsTableToJson(getResults(resp))
+        }
+    }
+}
+
+// Find the stops within the south, west, north and east bounds
+rm.get('/api/stops/') { req ->
+    def box = boxParams(req)
+    if ( ! box) {
+        req.response.with {
+            statusCode = 400
+            statusMessage = "Missing bounds"
+            end()
+        }
+        return
+    }
+    eb.send("volt", invokeAs("GetStopsInBox", box as String[])) { reply ->
+        resp = parseResponse(reply.body)
+        if ( ! checkError(req, resp)) {
+            req.response.headers["Content-Type"] = 'application/json; charset=UTF-8'
+            req.response.end new JsonBuilder(getResults(resp).collect { row ->
+                [stopId: row[0], name: row[1], lat: row[2], lng: row[3]]
+            }).toString()
+        }
+    }
+}
+
+// Find the k stops nearest to the given point
+rm.get('/api/stops/nearest/') { req ->
+    eb.send("volt", invokeAs("GetNearestStops",
+                             req.params["lat"],
+                             req.params["lng"],
+                             req.params["k"] ?: "5")) { reply ->
+        resp = parseResponse(reply.body)
+        if ( ! checkError(req, resp)) {
+            req.response.headers["Content-Type"] = 'application/json; charset=UTF-8'
+            req.response.end new JsonBuilder(getResults(resp).collect { row ->
+                [stopId: row[0], name: row[1], lat: row[2], lng: row[3], distance: row[4]]
+            }).toString()
+        }
+    }
+}
+
 rm.post('/') { req ->
     req.bodyHandler { body ->
         def params = formUrlEncodedToMap(body).subMap(['key','value'])